@@ -0,0 +1,72 @@
+/**
+ * Artifact lists the outputs the Preprocessor can write.  Passing just the
+ * ones you need to JavaDatasetPreprocessor.run() skips the stages nothing
+ * else depends on.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import java.util.*;
+
+public enum Artifact
+{
+  JSON_DUMP,          // methodsProcessed.json and summariesProcessed.json.
+  METHODS,            // code.original in each split.
+  SUBTOKENS,          // code.original_subtoken in each split.
+  SUMMARIES,          // javadoc.original in each split.
+  CODE_VOCABULARY,    // vocab.code, and its sections of stats.json.
+  SUMMARY_VOCABULARY, // vocab.javadoc, and its sections of stats.json.
+  COLUMNAR;           // data.jdsc in each split.
+
+  /**
+   * Everything a Preprocessor constructed with a path writes.
+   **/
+  public static final Set<Artifact> DEFAULT = Collections.unmodifiableSet(EnumSet.of(
+    JSON_DUMP, METHODS, SUBTOKENS, SUMMARIES, CODE_VOCABULARY, SUMMARY_VOCABULARY));
+
+  /**
+   * Whether any of the artifacts need the methods to be tokenised.
+   *
+   * @param artifacts the artifacts.
+   * @return true if the methods must be tokenised.
+   **/
+  public static boolean needTokens(Set<Artifact> artifacts)
+  {
+    return artifacts.contains(SUBTOKENS)
+      || artifacts.contains(CODE_VOCABULARY)
+      || artifacts.contains(COLUMNAR);
+  }
+
+  /**
+   * Whether any of the artifacts are written into the test/train/dev splits,
+   * or counted from them.
+   *
+   * @param artifacts the artifacts.
+   * @return true if the splits must be made.
+   **/
+  public static boolean needSplits(Set<Artifact> artifacts)
+  {
+    return artifacts.contains(METHODS)
+      || artifacts.contains(CODE_VOCABULARY)
+      || artifacts.contains(SUMMARY_VOCABULARY)
+      || artifacts.contains(SUBTOKENS)
+      || artifacts.contains(SUMMARIES)
+      || artifacts.contains(COLUMNAR);
+  }
+
+  /**
+   * Whether the artifacts include every text file of the splits, which is
+   * what a run manifest describes.
+   *
+   * @param artifacts the artifacts.
+   * @return true if all the split text files are written.
+   **/
+  public static boolean allSplitFiles(Set<Artifact> artifacts)
+  {
+    return artifacts.contains(METHODS)
+      && artifacts.contains(SUBTOKENS)
+      && artifacts.contains(SUMMARIES);
+  }
+}
@@ -0,0 +1,225 @@
+/**
+ * CleaningService keeps the cleaner running as a local HTTP service, so tools
+ * that clean one method at a time don't pay for a JVM and a parser on every
+ * call.  It only listens on the loopback address.
+ *
+ * Every endpoint takes a POST of {"input": "..."}, answered with
+ * {"output": ...}, or a batch of {"inputs": ["...", ...]}, answered with
+ * {"outputs": [...]}:
+ *   /validate        - whether the method parses (true/false).
+ *   /strip-comments  - the method without comments, or null if it won't parse.
+ *   /tokenise        - the method stripped of comments and tokenised as in
+ *                      code.original_subtoken, or null if it won't parse.
+ *   /clean-summary   - the Javadoc comment cleaned into a summary.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import com.github.javaparser.JavaParser;
+import com.sun.net.httpserver.*;
+import org.json.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+public class CleaningService
+{
+  public static final int DEFAULT_PORT = 8765;
+
+  private static final String WARM_UP_METHOD = "/**\n"
+    + " * Gets the value.\n"
+    + " */\n"
+    + "public int getValue(int someArg) {\n"
+    + "  // add them up\n"
+    + "  return someArg + value; /* done */\n"
+    + "}";
+
+  private final HttpServer server;
+  private final ExecutorService workers;
+  private final BlockingQueue<JavaParser> parsers;
+
+  /**
+   * Starts the service.
+   *
+   * @param port the port to listen on.
+   * @param parserCount how many warmed parsers to keep in the pool.
+   * @param concurrency the most requests handled at once; the rest wait.
+   * @throws IOException if the port can't be bound.
+   **/
+  public CleaningService(int port, int parserCount, int concurrency) throws IOException
+  {
+    parsers = new ArrayBlockingQueue<>(parserCount);
+    for (int cnt = 0; cnt < parserCount; cnt++)
+    {
+      JavaParser jp = JP.createJavaParser(false);
+      // parse something first so the first real request isn't slow.
+      for (int warm = 0; warm < 100; warm++)
+        JavaDatasetPreprocessor.removeComments(jp, WARM_UP_METHOD);
+      parsers.add(jp);
+    }
+    workers = Executors.newFixedThreadPool(concurrency);
+    // small responses otherwise sit behind Nagle's algorithm for ~40ms.
+    if (System.getProperty("sun.net.httpserver.nodelay") == null)
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/validate",
+      handler((method, jp) -> JavaDatasetPreprocessor.removeComments(jp, method) != null, true));
+    server.createContext("/strip-comments",
+      handler((method, jp) -> JavaDatasetPreprocessor.removeComments(jp, method), true));
+    server.createContext("/tokenise",
+      handler((method, jp) -> tokenise(jp, method), true));
+    server.createContext("/clean-summary",
+      handler((summary, jp) -> JavaDatasetPreprocessor.cleanSummary(summary).trim(), false));
+    server.setExecutor(workers);
+    server.start();
+  }
+
+  /**
+   * Runs the service until it's killed.
+   *
+   * @param args [port] [parsers] [concurrency]
+   * @throws IOException if the port can't be bound.
+   **/
+  public static void main(String[] args) throws IOException
+  {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+    int parserCount = args.length > 1 ? Integer.parseInt(args[1]) : processors;
+    int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : processors;
+    CleaningService service = new CleaningService(port, parserCount, concurrency);
+    System.out.println("Cleaning service listening on http://localhost:" + service.getPort() + "/");
+  }
+
+  /**
+   * Gets the port the service is listening on.
+   *
+   * @return the port.
+   **/
+  public int getPort()
+  {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Stops the service.
+   **/
+  public void stop()
+  {
+    server.stop(0);
+    workers.shutdown();
+  }
+
+  private interface Operation
+  {
+    Object apply(String input, JavaParser jp);
+  }
+
+  /**
+   * Makes an HTTP handler that applies an operation to one input, or each
+   * of a batch of inputs.  Operations that need a parser borrow one from
+   * the pool once for the whole batch.
+   *
+   * @param operation the operation.
+   * @param needsParser whether it needs a parser.
+   * @return the handler.
+   **/
+  private HttpHandler handler(Operation operation, boolean needsParser)
+  {
+    return exchange ->
+    {
+      try
+      {
+        if (!exchange.getRequestMethod().equals("POST"))
+        {
+          respond(exchange, 405, new JSONObject().put("error", "Use POST"));
+          return;
+        }
+        JSONObject request;
+        boolean batch;
+        String[] inputs;
+        try
+        {
+          request = new JSONObject(new String(exchange.getRequestBody().readAllBytes(),
+            StandardCharsets.UTF_8));
+          batch = request.has("inputs");
+          if (!batch && !request.has("input"))
+          {
+            respond(exchange, 400, new JSONObject().put("error", "Expected input or inputs"));
+            return;
+          }
+          // getString and getJSONArray throw if an input isn't a string.
+          if (batch)
+          {
+            JSONArray array = request.getJSONArray("inputs");
+            inputs = new String[array.length()];
+            for (int cnt = 0; cnt < inputs.length; cnt++)
+              inputs[cnt] = array.getString(cnt);
+          } else
+            inputs = new String[]{request.getString("input")};
+        } catch (JSONException e)
+        {
+          respond(exchange, 400, new JSONObject().put("error", e.getMessage()));
+          return;
+        }
+
+        JSONArray outputs = new JSONArray();
+        JavaParser jp = needsParser ? parsers.take() : null;
+        try
+        {
+          for (String input: inputs)
+          {
+            Object output = operation.apply(input, jp);
+            outputs.put(output == null ? JSONObject.NULL : output);
+          }
+        } finally
+        {
+          if (jp != null)
+            parsers.add(jp);
+        }
+        JSONObject response = new JSONObject();
+        if (batch)
+          response.put("outputs", outputs);
+        else
+          response.put("output", outputs.get(0));
+        respond(exchange, 200, response);
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        respond(exchange, 503, new JSONObject().put("error", "Shutting down"));
+      } catch (RuntimeException e)
+      {
+        respond(exchange, 500, new JSONObject().put("error", String.valueOf(e)));
+      } finally
+      {
+        exchange.close();
+      }
+    };
+  }
+
+  /**
+   * Tokenises a method the way the Preprocessor does: parsed and reprinted
+   * without comments, newlines stripped, then tokenised.
+   *
+   * @param jp the parser to use.
+   * @param method the method.
+   * @return the tokenised method, or null if it couldn't be parsed.
+   **/
+  private static String tokenise(JavaParser jp, String method)
+  {
+    String stripped = JavaDatasetPreprocessor.removeComments(jp, method);
+    if (stripped == null)
+      return null;
+    return JavaDatasetPreprocessor.tokeniseMethod(stripped.replaceAll("\n", " "));
+  }
+
+  private static void respond(HttpExchange exchange, int status, JSONObject body) throws IOException
+  {
+    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+}
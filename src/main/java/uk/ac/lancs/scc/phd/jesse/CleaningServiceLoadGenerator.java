@@ -0,0 +1,128 @@
+/**
+ * CleaningServiceLoadGenerator fires requests at a running CleaningService
+ * and reports its latency and throughput.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import org.json.*;
+import java.net.URI;
+import java.net.http.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class CleaningServiceLoadGenerator
+{
+  private static final String SAMPLE_METHOD = "/**\n"
+    + " * Returns the <b>number</b> of items in this list.\n"
+    + " * @return the size\n"
+    + " */\n"
+    + "public int getItemCount(List<String> itemList) {\n"
+    + "  // null means empty\n"
+    + "  if (itemList == null) { return 0; }\n"
+    + "  return itemList.size(); /* never negative */\n"
+    + "}";
+
+  private static final String SAMPLE_SUMMARY = "/**\n"
+    + " * Returns the <b>number</b> of items in this list.\n"
+    + " * @return the size\n"
+    + " */";
+
+  /**
+   * Runs the load and prints a report.
+   *
+   * @param args [port] [endpoint] [requests] [concurrency] [batch size]
+   * @throws InterruptedException
+   **/
+  public static void main(String[] args) throws InterruptedException
+  {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : CleaningService.DEFAULT_PORT;
+    String endpoint = args.length > 1 ? args[1] : "strip-comments";
+    int requests = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+    int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+    int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+    System.out.print(run(port, endpoint, requests, concurrency, batchSize));
+  }
+
+  /**
+   * Sends requests to an endpoint from several threads at once.
+   *
+   * @param port the port the service is on.
+   * @param endpoint validate, strip-comments, tokenise or clean-summary.
+   * @param requests how many requests to send.
+   * @param concurrency how many to have in flight at once.
+   * @param batchSize how many inputs to put in each request; 1 sends single
+   * inputs rather than batches.
+   * @return the report.
+   * @throws InterruptedException
+   **/
+  public static String run(int port, String endpoint, int requests, int concurrency, int batchSize)
+    throws InterruptedException
+  {
+    String input = endpoint.equals("clean-summary") ? SAMPLE_SUMMARY : SAMPLE_METHOD;
+    JSONObject body = new JSONObject();
+    if (batchSize == 1)
+      body.put("input", input);
+    else
+      body.put("inputs", new JSONArray(Collections.nCopies(batchSize, input)));
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/" + endpoint))
+      .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+      .header("Content-Type", "application/json")
+      .build();
+    ExecutorService clientPool = Executors.newFixedThreadPool(concurrency);
+    HttpClient client = HttpClient.newBuilder()
+      .executor(clientPool)
+      .build();
+
+    long[] latencies = new long[requests];
+    AtomicInteger next = new AtomicInteger();
+    AtomicLong errors = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+    long start = System.nanoTime();
+    for (int w = 0; w < concurrency; w++)
+      pool.submit(() ->
+      {
+        for (int cnt = next.getAndIncrement(); cnt < requests; cnt = next.getAndIncrement())
+        {
+          long sent = System.nanoTime();
+          try
+          {
+            if (client.send(request, HttpResponse.BodyHandlers.ofString()).statusCode() != 200)
+              errors.incrementAndGet();
+          } catch (Exception e)
+          {
+            errors.incrementAndGet();
+          }
+          latencies[cnt] = System.nanoTime() - sent;
+        }
+      });
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    clientPool.shutdown();
+    Arrays.sort(latencies);
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("Endpoint: /").append(endpoint).append("\n");
+    sb.append("Requests: ").append(requests).append(" (").append(errors.get()).append(" failed), ")
+      .append(batchSize).append(" input(s) each, ").append(concurrency).append(" at once\n");
+    sb.append(String.format("Throughput: %.1f requests/s, %.1f inputs/s%n",
+      requests / seconds, (double) requests * batchSize / seconds));
+    sb.append(String.format("Latency: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+      percentile(latencies, 0.50) / 1e6,
+      percentile(latencies, 0.99) / 1e6,
+      latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6));
+    return sb.toString();
+  }
+
+  private static long percentile(long[] sorted, double fraction)
+  {
+    if (sorted.length == 0)
+      return 0;
+    int index = (int) Math.ceil(sorted.length * fraction) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+}
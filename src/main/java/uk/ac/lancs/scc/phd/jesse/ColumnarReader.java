@@ -0,0 +1,223 @@
+/**
+ * ColumnarReader reads the files written by ColumnarWriter.  Any record can
+ * be read without reading the ones before it: the index says which chunk it
+ * is in, and only that chunk is memory mapped and inflated.  The last chunk
+ * read is kept, so reading in order is cheap.  Not safe to share between
+ * threads.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class ColumnarReader implements Closeable
+{
+  public static final int METHOD = 0;
+  public static final int TOKENS = 1;
+  public static final int SUMMARY = 2;
+
+  private final FileChannel channel;
+  private final long[] offsets;
+  private final int[] compressedLengths;
+  private final int[] rawLengths;
+  private final long[] firstRecords;
+  private final long records;
+
+  private int cachedChunk = -1;
+  private ByteBuffer chunkData;
+  private int[] valueOffsets;
+
+  /**
+   * Opens a file and reads its index.
+   *
+   * @param path the file.
+   * @throws IOException if it can't be read, or isn't a ColumnarWriter file.
+   **/
+  public ColumnarReader(Path path) throws IOException
+  {
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    ByteBuffer header = read(0, 8);
+    ByteBuffer trailer = read(channel.size() - 12, 12);
+    if (header.getInt() != ColumnarWriter.MAGIC || trailer.getInt(8) != ColumnarWriter.MAGIC)
+    {
+      channel.close();
+      throw new IOException("Not a columnar dataset file: " + path);
+    }
+    if (header.getInt() != ColumnarWriter.VERSION)
+    {
+      channel.close();
+      throw new IOException("Unsupported columnar dataset version: " + path);
+    }
+    long indexOffset = trailer.getLong(0);
+    int chunks = read(indexOffset, 4).getInt();
+    ByteBuffer index = read(indexOffset + 4, chunks * 20);
+    offsets = new long[chunks];
+    compressedLengths = new int[chunks];
+    rawLengths = new int[chunks];
+    firstRecords = new long[chunks + 1];
+    for (int cnt = 0; cnt < chunks; cnt++)
+    {
+      offsets[cnt] = index.getLong();
+      compressedLengths[cnt] = index.getInt();
+      rawLengths[cnt] = index.getInt();
+      firstRecords[cnt + 1] = firstRecords[cnt] + index.getInt();
+    }
+    records = firstRecords[chunks];
+  }
+
+  /**
+   * Gets the number of records in the file.
+   *
+   * @return the number of records.
+   **/
+  public long size()
+  {
+    return records;
+  }
+
+  /**
+   * Gets the number of chunks in the file.
+   *
+   * @return the number of chunks.
+   **/
+  public int getNumberOfChunks()
+  {
+    return offsets.length;
+  }
+
+  /**
+   * Gets one value of a record.
+   *
+   * @param record the record number, from 0.
+   * @param column METHOD, TOKENS or SUMMARY.
+   * @return the value.
+   * @throws IOException
+   **/
+  public String get(long record, int column) throws IOException
+  {
+    if (record < 0 || record >= records)
+      throw new IndexOutOfBoundsException("No record " + record + " in " + records);
+    int chunk = findChunk(record);
+    loadChunk(chunk);
+    int inChunk = (int) (record - firstRecords[chunk]);
+    int count = (int) (firstRecords[chunk + 1] - firstRecords[chunk]);
+    int offset = valueOffsets[column * count + inChunk];
+    int length = chunkData.getInt(offset);
+    byte[] bytes = new byte[length];
+    chunkData.get(offset + 4, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets a whole record.
+   *
+   * @param record the record number, from 0.
+   * @return the method, tokenised method and summary.
+   * @throws IOException
+   **/
+  public String[] getRecord(long record) throws IOException
+  {
+    return new String[]{get(record, METHOD), get(record, TOKENS), get(record, SUMMARY)};
+  }
+
+  /**
+   * Closes the file.
+   *
+   * @throws IOException
+   **/
+  @Override
+  public void close() throws IOException
+  {
+    channel.close();
+  }
+
+  /**
+   * Binary searches the index for the chunk a record is in.
+   *
+   * @param record the record number.
+   * @return the chunk number.
+   **/
+  private int findChunk(long record)
+  {
+    int low = 0;
+    int high = offsets.length - 1;
+    while (low < high)
+    {
+      int mid = (low + high + 1) >>> 1;
+      if (firstRecords[mid] <= record)
+        low = mid;
+      else
+        high = mid - 1;
+    }
+    return low;
+  }
+
+  /**
+   * Memory maps and inflates a chunk, unless it's the one already loaded,
+   * and works out where each of its values start.
+   *
+   * @param chunk the chunk number.
+   * @throws IOException
+   **/
+  private void loadChunk(int chunk) throws IOException
+  {
+    if (chunk == cachedChunk)
+      return;
+    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+      offsets[chunk], compressedLengths[chunk]);
+    byte[] raw = new byte[rawLengths[chunk]];
+    Inflater inflater = new Inflater();
+    try
+    {
+      inflater.setInput(mapped);
+      int read = 0;
+      while (read < raw.length && !inflater.finished())
+      {
+        int n = inflater.inflate(raw, read, raw.length - read);
+        if (n == 0 && inflater.needsInput())
+          break;
+        read += n;
+      }
+      if (read != raw.length)
+        throw new IOException("Chunk " + chunk + " is truncated");
+    } catch (DataFormatException e)
+    {
+      throw new IOException("Chunk " + chunk + " is corrupt", e);
+    } finally
+    {
+      inflater.end();
+    }
+
+    ByteBuffer data = ByteBuffer.wrap(raw);
+    int count = data.getInt(0);
+    int[] starts = new int[count * ColumnarWriter.COLUMNS];
+    int offset = 4;
+    for (int cnt = 0; cnt < starts.length; cnt++)
+    {
+      starts[cnt] = offset;
+      offset += 4 + data.getInt(offset);
+    }
+    chunkData = data;
+    valueOffsets = starts;
+    cachedChunk = chunk;
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining())
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new EOFException();
+    buffer.flip();
+    return buffer;
+  }
+}
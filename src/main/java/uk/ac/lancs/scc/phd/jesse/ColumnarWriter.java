@@ -0,0 +1,188 @@
+/**
+ * ColumnarWriter writes records to a compact binary file that's much quicker
+ * to reread than the JSON or text outputs.
+ *
+ * The file is a run of chunks, followed by an index of them:
+ *   "JDSC", int version
+ *   chunk*  - deflated: int records, then for each column (method, tokens,
+ *             summary) every record's value as an int length and UTF-8 bytes
+ *   index   - int chunks, then per chunk: long offset, int compressed length,
+ *             int uncompressed length, int records
+ *   long index offset, "JDSC"
+ * Chunks are compressed in parallel, but written in order.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+
+public class ColumnarWriter implements Closeable
+{
+  public static final int MAGIC = 0x4a445343; // "JDSC"
+  public static final int VERSION = 1;
+  public static final int COLUMNS = 3;
+  public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+  private final DataOutputStream out;
+  private final ExecutorService pool;
+  private final int chunkSize;
+  private final int maxInFlight;
+  private ArrayList<String[]> chunk = new ArrayList<>();
+  private ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+  private ByteArrayOutputStream index = new ByteArrayOutputStream();
+  private DataOutputStream indexOut = new DataOutputStream(index);
+  private int chunks = 0;
+  private long position = 0;
+
+  /**
+   * Opens a file for writing.
+   *
+   * @param path the file.
+   * @param chunkSize how many records go in each chunk.
+   * @param pool the threads to compress chunks on.
+   * @throws IOException
+   **/
+  public ColumnarWriter(Path path, int chunkSize, ExecutorService pool) throws IOException
+  {
+    this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+    this.maxInFlight = Runtime.getRuntime().availableProcessors() * 2;
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    position = 8;
+  }
+
+  /**
+   * Adds a record.
+   *
+   * @param method the method.
+   * @param tokenisedMethod the tokenised method.
+   * @param summary the summary.
+   * @throws IOException
+   **/
+  public void write(String method, String tokenisedMethod, String summary) throws IOException
+  {
+    chunk.add(new String[]{method, tokenisedMethod, summary});
+    if (chunk.size() == chunkSize)
+      flushChunk();
+  }
+
+  /**
+   * Writes the last chunk, the index and the trailer, then closes the file.
+   * The file is closed even if writing them fails.
+   *
+   * @throws IOException
+   **/
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      if (!chunk.isEmpty())
+        flushChunk();
+      while (!inFlight.isEmpty())
+        writeChunk(inFlight.poll());
+      long indexOffset = position;
+      out.writeInt(chunks);
+      indexOut.flush();
+      index.writeTo(out);
+      out.writeLong(indexOffset);
+      out.writeInt(MAGIC);
+    } finally
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Hands the current chunk to the pool to compress, and writes out any
+   * chunks ahead of it that are done, so only a few are held in memory.
+   *
+   * @throws IOException
+   **/
+  private void flushChunk() throws IOException
+  {
+    List<String[]> records = chunk;
+    chunk = new ArrayList<>();
+    inFlight.add(pool.submit(() -> compress(records)));
+    while (!inFlight.isEmpty() && (inFlight.size() > maxInFlight || inFlight.peek().isDone()))
+      writeChunk(inFlight.poll());
+  }
+
+  private void writeChunk(Future<Chunk> future) throws IOException
+  {
+    Chunk compressed;
+    try
+    {
+      compressed = future.get();
+    } catch (InterruptedException | ExecutionException e)
+    {
+      throw new IOException("Couldn't compress a chunk", e);
+    }
+    indexOut.writeLong(position);
+    indexOut.writeInt(compressed.data.length);
+    indexOut.writeInt(compressed.rawLength);
+    indexOut.writeInt(compressed.records);
+    out.write(compressed.data);
+    position += compressed.data.length;
+    chunks++;
+  }
+
+  /**
+   * A compressed chunk, waiting to be written.
+   **/
+  private static class Chunk
+  {
+    final byte[] data;
+    final int rawLength;
+    final int records;
+
+    Chunk(byte[] data, int rawLength, int records)
+    {
+      this.data = data;
+      this.rawLength = rawLength;
+      this.records = records;
+    }
+  }
+
+  /**
+   * Lays a chunk out column by column and deflates it.
+   *
+   * @param records the records in the chunk.
+   * @return the deflated chunk.
+   * @throws IOException
+   **/
+  private static Chunk compress(List<String[]> records) throws IOException
+  {
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    DataOutputStream rawOut = new DataOutputStream(raw);
+    rawOut.writeInt(records.size());
+    for (int column = 0; column < COLUMNS; column++)
+      for (String[] record: records)
+      {
+        byte[] bytes = record[column].getBytes(StandardCharsets.UTF_8);
+        rawOut.writeInt(bytes.length);
+        rawOut.write(bytes);
+      }
+    rawOut.flush();
+    byte[] input = raw.toByteArray();
+
+    Deflater deflater = new Deflater();
+    deflater.setInput(input);
+    deflater.finish();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(input.length / 2 + 64);
+    byte[] buffer = new byte[65536];
+    while (!deflater.finished())
+      compressed.write(buffer, 0, deflater.deflate(buffer));
+    deflater.end();
+    return new Chunk(compressed.toByteArray(), input.length, records.size());
+  }
+}
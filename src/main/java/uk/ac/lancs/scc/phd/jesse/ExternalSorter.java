@@ -0,0 +1,332 @@
+/**
+ * ExternalSorter sorts (key, value) pairs of longs, such as a fingerprint and
+ * the record it came from, within a memory budget.  Pairs are buffered until
+ * the budget is used, then sorted and spilled to a temp file as a run; the
+ * runs are merged back together when the pairs are read, a few at a time if
+ * there are too many to have open at once.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class ExternalSorter implements Closeable
+{
+  public static final int BYTES_PER_PAIR = 16;
+  // The most runs merged at once, to keep the open files down.
+  private static final int MAX_FAN_IN = 64;
+
+  private final int capacity;
+  private long[] keys;
+  private long[] values;
+  private int buffered = 0;
+  private int runCount = 0;
+  private Path tempDir = null;
+  private ArrayList<Path> runs = new ArrayList<>();
+  private ArrayList<Run> open = new ArrayList<>();
+
+  /**
+   * Creates a sorter.
+   *
+   * @param memoryBudget roughly how many bytes of pairs to hold in memory.
+   **/
+  public ExternalSorter(long memoryBudget)
+  {
+    capacity = (int) Math.max(1024, Math.min(memoryBudget / BYTES_PER_PAIR, 1 << 28));
+    keys = new long[1024];
+    values = new long[1024];
+  }
+
+  /**
+   * Adds a pair, spilling a run to disk if the buffer has used the budget.
+   *
+   * @param key what to sort on.
+   * @param value what to sort on when the keys are the same.
+   * @throws IOException
+   **/
+  public void add(long key, long value) throws IOException
+  {
+    if (buffered == keys.length && keys.length < capacity)
+    {
+      keys = Arrays.copyOf(keys, (int) Math.min(capacity, keys.length * 2L));
+      values = Arrays.copyOf(values, keys.length);
+    }
+    if (buffered == keys.length)
+      spill();
+    keys[buffered] = key;
+    values[buffered] = value;
+    buffered++;
+  }
+
+  /**
+   * Gets the number of runs spilled to disk.
+   *
+   * @return the number of runs, 0 if everything fit in memory.
+   **/
+  public int getNumberOfRuns()
+  {
+    return runs.size();
+  }
+
+  /**
+   * Reads the pairs back in order of key, then value.  Once this has been
+   * called, no more pairs can be added, but it can be called again to read
+   * them again.
+   *
+   * @return a cursor over the sorted pairs.
+   * @throws IOException
+   **/
+  public Cursor sorted() throws IOException
+  {
+    if (runs.isEmpty())
+    {
+      sort(0, buffered - 1);
+      return new Cursor(null);
+    }
+    if (buffered > 0)
+      spill();
+    // the buffer isn't needed any more, only the runs.
+    keys = new long[0];
+    values = new long[0];
+    while (runs.size() > MAX_FAN_IN)
+    {
+      List<Path> merged = runs.subList(0, MAX_FAN_IN);
+      Path run = tempDir.resolve("run" + runCount++);
+      PriorityQueue<Run> queue = merge(merged);
+      long pairs = 0;
+      for (Run r: queue)
+        pairs += r.pairs;
+      Cursor cursor = new Cursor(queue);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16));
+      try
+      {
+        out.writeLong(pairs);
+        while (cursor.next())
+        {
+          out.writeLong(cursor.key());
+          out.writeLong(cursor.value());
+        }
+      } finally
+      {
+        out.close();
+      }
+      // every run merged has been read to the end, which closes it.
+      open.clear();
+      for (Path p: merged)
+        Files.delete(p);
+      merged.clear();
+      runs.add(run);
+    }
+    return new Cursor(merge(runs));
+  }
+
+  /**
+   * Opens runs and queues them up for merging.
+   *
+   * @param paths the runs.
+   * @return the runs, ordered by their first pair.
+   * @throws IOException
+   **/
+  private PriorityQueue<Run> merge(List<Path> paths) throws IOException
+  {
+    PriorityQueue<Run> queue = new PriorityQueue<>();
+    for (Path run: paths)
+    {
+      Run r = new Run(run);
+      open.add(r);
+      if (r.next())
+        queue.add(r);
+    }
+    return queue;
+  }
+
+  /**
+   * Deletes the runs spilled to disk.
+   *
+   * @throws IOException
+   **/
+  @Override
+  public void close() throws IOException
+  {
+    for (Run r: open)
+      r.in.close();
+    open.clear();
+    for (Path run: runs)
+      Files.deleteIfExists(run);
+    runs.clear();
+    if (tempDir != null)
+      Files.deleteIfExists(tempDir);
+  }
+
+  /**
+   * Walks the sorted pairs, either straight from the buffer or by merging
+   * the runs.
+   **/
+  public class Cursor
+  {
+    private final PriorityQueue<Run> queue;
+    private int position = -1;
+    private long key;
+    private long value;
+
+    private Cursor(PriorityQueue<Run> queue)
+    {
+      this.queue = queue;
+    }
+
+    /**
+     * Moves to the next pair.
+     *
+     * @return false if there are no more pairs.
+     * @throws IOException
+     **/
+    public boolean next() throws IOException
+    {
+      if (queue == null)
+      {
+        if (++position >= buffered)
+          return false;
+        key = keys[position];
+        value = values[position];
+        return true;
+      }
+      Run r = queue.poll();
+      if (r == null)
+        return false;
+      key = r.key;
+      value = r.value;
+      if (r.next())
+        queue.add(r);
+      return true;
+    }
+
+    /**
+     * Gets the key of the current pair.
+     *
+     * @return the key.
+     **/
+    public long key()
+    {
+      return key;
+    }
+
+    /**
+     * Gets the value of the current pair.
+     *
+     * @return the value.
+     **/
+    public long value()
+    {
+      return value;
+    }
+  }
+
+  /**
+   * A run on disk, being merged.
+   **/
+  private static class Run implements Comparable<Run>
+  {
+    private final DataInputStream in;
+    private final long pairs;
+    private long remaining;
+    long key;
+    long value;
+
+    Run(Path path) throws IOException
+    {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+      pairs = in.readLong();
+      remaining = pairs;
+    }
+
+    boolean next() throws IOException
+    {
+      if (remaining-- == 0)
+      {
+        in.close();
+        return false;
+      }
+      key = in.readLong();
+      value = in.readLong();
+      return true;
+    }
+
+    @Override
+    public int compareTo(Run other)
+    {
+      int c = Long.compare(key, other.key);
+      return c != 0 ? c : Long.compare(value, other.value);
+    }
+  }
+
+  /**
+   * Sorts the buffer and writes it out as a run.
+   *
+   * @throws IOException
+   **/
+  private void spill() throws IOException
+  {
+    if (tempDir == null)
+      tempDir = Files.createTempDirectory("javadatasetcleaner");
+    sort(0, buffered - 1);
+    Path run = tempDir.resolve("run" + runCount++);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16));
+    out.writeLong(buffered);
+    for (int cnt = 0; cnt < buffered; cnt++)
+    {
+      out.writeLong(keys[cnt]);
+      out.writeLong(values[cnt]);
+    }
+    out.close();
+    runs.add(run);
+    buffered = 0;
+  }
+
+  private boolean less(int a, int b)
+  {
+    return keys[a] < keys[b] || (keys[a] == keys[b] && values[a] < values[b]);
+  }
+
+  private void swap(int a, int b)
+  {
+    long k = keys[a];
+    keys[a] = keys[b];
+    keys[b] = k;
+    long v = values[a];
+    values[a] = values[b];
+    values[b] = v;
+  }
+
+  /**
+   * Quicksorts the buffered pairs between two indexes, inclusive, recursing
+   * into the smaller half so the stack stays shallow.
+   **/
+  private void sort(int low, int high)
+  {
+    while (high - low > 16)
+    {
+      swap(low + (high - low) / 2, high);
+      int store = low;
+      for (int cnt = low; cnt < high; cnt++)
+        if (less(cnt, high))
+          swap(cnt, store++);
+      swap(store, high);
+      if (store - low < high - store)
+      {
+        sort(low, store - 1);
+        low = store + 1;
+      } else
+      {
+        sort(store + 1, high);
+        high = store - 1;
+      }
+    }
+    for (int cnt = low + 1; cnt <= high; cnt++)
+      for (int j = cnt; j > low && less(j, j - 1); j--)
+        swap(j, j - 1);
+  }
+}
@@ -12,19 +12,102 @@ import org.json.*;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class JavaDatasetPreprocessor
 {
+  // The most records written across the splits.
+  private static final int MAX_RECORDS = 500000;
+  // Bump when the cleaning or tokenising changes what it writes, so the next
+  // run reprocesses everything rather than reusing the previous output.
+  private static final int OUTPUT_VERSION = 3;
+  // Where runs that don't write every split file save what they do write.
+  public static final String PARTIAL_DIR = "partial/";
+  // What records set aside as unused keep, for the next run to reconsider.
+  private static final Set<Artifact> UNUSED_ARTIFACTS = Collections.unmodifiableSet(EnumSet.of(
+    Artifact.METHODS, Artifact.SUBTOKENS, Artifact.SUMMARIES));
+  // Rough heap cost of processing in memory, per byte of the JSON files.
+  private static final long HEAP_BYTES_PER_INPUT_BYTE = 8;
+
   private ArrayList<String> methods = new ArrayList<>();
   private ArrayList<String> summaries = new ArrayList<>();
+  private ArrayList<String> ids = new ArrayList<>();
+  // In the order the records were read.
+  private LinkedHashMap<String, String> recordHashes = new LinkedHashMap<>();
+  private RunManifest previousManifest = new RunManifest();
+  private ArrayList<String> unparsableIds = new ArrayList<>();
+  private ArrayList<String> tooLongIds = new ArrayList<>();
+  private ArrayList<String[]> repeatRecords = new ArrayList<>();
+  private HashSet<String> unchangedIds = new HashSet<>();
+  private boolean incremental = true;
+  private long memoryBudget = Long.MAX_VALUE;
+  private LengthPolicy lengthPolicy = null;
+  private LeakageIndex.Policy leakagePolicy = LeakageIndex.Policy.KEEP_TOGETHER;
+  private ArrayList<String> carriedIds = new ArrayList<>();
+  private ArrayList<String> carriedMethods = new ArrayList<>();
+  private ArrayList<String> carriedTokenisedMethods = new ArrayList<>();
+  private ArrayList<String> carriedSummaries = new ArrayList<>();
+  private ArrayList<String> tokenisedMethodCache = null;
+  private HashMap<String, TokenCounts> codeCounts = new HashMap<>();
+  private HashMap<String, TokenCounts> summaryCounts = new HashMap<>();
   private long goodMethods = 0;
   private long badMethods = 0;
   private String dataLocation ="";
+  private String outputLocation = null;
 
   public JavaDatasetPreprocessor(String path)
+  {
+    this(path, Artifact.DEFAULT);
+  }
+
+  /**
+   * Constructs a Preprocessor and runs it, writing only the given artifacts.
+   *
+   * @param path where to find the data and save the artifacts.
+   * @param artifacts the artifacts to write.
+   **/
+  public JavaDatasetPreprocessor(String path, Set<Artifact> artifacts)
   {
     setDataLocation(path);
-    System.out.println("Data will be searched for and saved in: " + dataLocation);
+    run(artifacts);
+  }
+
+  /**
+   * Empty constructor.
+   * To allow the GUI to construct a Preprocessor without running automatically.
+   **/
+  public JavaDatasetPreprocessor()
+  {
+    //silence is golden.
+  }
+
+  /**
+   * Runs the Preprocessor, writing only the artifacts asked for and doing
+   * only the stages they depend on: tokenising is skipped if nothing needs
+   * the subtokens, the JSON dump if it isn't asked for, and repeat removal,
+   * shuffling and the split files if no split artifact is asked for.
+   * Parsing and cleaning the summaries always run, because they decide which
+   * records are in the dataset.  The previous run is only reused when all
+   * the split text files are asked for; otherwise everything is saved under
+   * PARTIAL_DIR in the data location, replacing what the last such run saved
+   * there, and the full run's output is left as it is.
+   * If the data won't fit in the memory budget, it's processed on disk
+   * instead: see runOutOfCore().
+   *
+   * @param artifacts the artifacts to write.
+   **/
+  public void run(Set<Artifact> artifacts)
+  {
+    outputLocation = getOutputLocation(dataLocation, artifacts);
+    System.out.println("Data will be searched for in: " + dataLocation);
+    System.out.println("Data will be saved in: " + outputLocation);
+    if (!fitsInMemoryBudget())
+    {
+      runOutOfCore(artifacts);
+      return;
+    }
     try
     {
       System.out.println("Searching for data:");
@@ -34,6 +117,20 @@ public class JavaDatasetPreprocessor
       System.out.println("Couldn't find data!");
       e.printStackTrace();
     }
+    if (Artifact.allSplitFiles(artifacts))
+    {
+      try
+      {
+        System.out.println("Comparing data against the previous run's manifest.");
+        diffAgainstManifest();
+      } catch (IOException e)
+      {
+        System.out.println("Couldn't read the previous run, reprocessing everything.");
+        e.printStackTrace();
+      }
+    }
+    System.out.println("Dropping records with summaries over the length limit.");
+    dropLongSummaries();
     System.out.println("Trimming methods list to valid methods only.");
     trimToValidData();
     System.out.println("Trimming to 500k records for testing.");
@@ -48,10 +145,14 @@ public class JavaDatasetPreprocessor
     stripSpecialCharsFromSummaries();
     try
     {
+      prepareOutputLocation(artifacts);
+      System.out.println("Applying the length policy.");
+      applyLengthPolicy();
       System.out.println("Saving data");
-      saveData(dataLocation);
-      prepareDataForNeuralCodeSum(dataLocation);
-      System.out.println("Data saved at " + dataLocation + "!");
+      if (artifacts.contains(Artifact.JSON_DUMP))
+        saveData(outputLocation);
+      prepareDataForNeuralCodeSum(dataLocation, artifacts);
+      System.out.println("Data saved at " + outputLocation + "!");
     } catch (IOException e)
     {
       System.out.println("Could not save data!");
@@ -60,12 +161,94 @@ public class JavaDatasetPreprocessor
   }
 
   /**
-   * Empty constructor.
-   * To allow the GUI to construct a Preprocessor without running automatically.
+   * Runs the Preprocessor on data that won't fit in the memory budget, with
+   * a StreamingPreprocessor, which keeps the records in temp files and sorts
+   * them externally to pair them up, remove repeats and shuffle them.  The
+   * records are cleaned and split the same way as in memory, except that
+   * nothing is cut to 800k first, as that's only to save memory.  Runs on
+   * disk aren't incremental: a full one replaces the splits, so it deletes
+   * the previous run's manifest and unused records, and the next run
+   * reprocesses everything.
+   *
+   * @param artifacts the artifacts to write.
    **/
-  public JavaDatasetPreprocessor()
+  private void runOutOfCore(Set<Artifact> artifacts)
   {
-    //silence is golden.
+    FileSystem fS = FileSystems.getDefault();
+    System.out.println("The data won't fit in the memory budget, processing it on disk.");
+    try
+    {
+      prepareOutputLocation(artifacts);
+      if (outputLocation.equals(dataLocation))
+      {
+        Files.deleteIfExists(fS.getPath(dataLocation + RunManifest.FILE_NAME));
+        deleteDirectory(fS.getPath(dataLocation + RunManifest.UNUSED));
+      }
+      StreamingPreprocessor streaming = new StreamingPreprocessor(this,
+        lengthPolicy,
+        leakagePolicy,
+        memoryBudget,
+        MAX_RECORDS);
+      streaming.run(dataLocation, outputLocation, artifacts);
+      goodMethods += streaming.getNumberOfGoodMethods();
+      badMethods += streaming.getNumberOfBadMethods();
+      if (Artifact.needSplits(artifacts))
+      {
+        codeCounts = streaming.getCodeCounts();
+        summaryCounts = streaming.getSummaryCounts();
+        saveRequestedStatistics(outputLocation, artifacts);
+      }
+      System.out.println("Data saved at " + outputLocation + "!");
+    } catch (IOException e)
+    {
+      System.out.println("Could not save data!");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Estimates whether processing the data in memory would fit in the memory
+   * budget, from the size of the JSON files.
+   *
+   * @return false if the data should be processed on disk.
+   **/
+  private boolean fitsInMemoryBudget()
+  {
+    if (memoryBudget == Long.MAX_VALUE)
+      return true;
+    FileSystem fS = FileSystems.getDefault();
+    long size = 0;
+    for (String file: new String[]{"functions.json", "comments.json"})
+    {
+      try
+      {
+        size += Files.size(fS.getPath(dataLocation + file));
+      } catch (IOException e)
+      {
+        // getData() will say it's missing.
+      }
+    }
+    return size <= memoryBudget / HEAP_BYTES_PER_INPUT_BYTE;
+  }
+
+  /**
+   * Readies the directory a run saves to: a partial run's is emptied, and
+   * a JSON dump that isn't asked for is deleted from it, so nothing left
+   * there by an earlier run sits beside the new output.
+   *
+   * @param artifacts the artifacts to write.
+   * @throws IOException
+   **/
+  private void prepareOutputLocation(Set<Artifact> artifacts) throws IOException
+  {
+    FileSystem fS = FileSystems.getDefault();
+    if (!outputLocation.equals(dataLocation))
+      clearDirectory(outputLocation);
+    if (!artifacts.contains(Artifact.JSON_DUMP))
+    {
+      Files.deleteIfExists(fS.getPath(outputLocation + "methodsProcessed.json"));
+      Files.deleteIfExists(fS.getPath(outputLocation + "summariesProcessed.json"));
+    }
   }
 
   /**
@@ -90,6 +273,132 @@ public class JavaDatasetPreprocessor
     return this.dataLocation;
   }
 
+  /**
+   * Gets where a run writing the given artifacts saves them: the data
+   * location itself if they include every split text file, which is what a
+   * full run writes, or PARTIAL_DIR in it otherwise, so a partial run
+   * doesn't replace or delete the full run's output.
+   *
+   * @param dir the data location.
+   * @param artifacts the artifacts.
+   * @return the directory to save them in.
+   **/
+  public static String getOutputLocation(String dir, Set<Artifact> artifacts)
+  {
+    return Artifact.allSplitFiles(artifacts) ? dir : dir + PARTIAL_DIR;
+  }
+
+  /**
+   * Deletes everything in a directory and recreates it empty.
+   *
+   * @param dir the directory.
+   * @throws IOException
+   **/
+  private static void clearDirectory(String dir) throws IOException
+  {
+    Path path = FileSystems.getDefault().getPath(dir);
+    deleteDirectory(path);
+    Files.createDirectories(path);
+  }
+
+  /**
+   * Deletes a directory and everything in it, if it's there.
+   *
+   * @param dir the directory.
+   * @throws IOException
+   **/
+  static void deleteDirectory(Path dir) throws IOException
+  {
+    if (!Files.exists(dir))
+      return;
+    ArrayList<Path> paths = new ArrayList<>();
+    try (Stream<Path> walk = Files.walk(dir))
+    {
+      walk.forEach(paths::add);
+    }
+    // children before their parents.
+    Collections.reverse(paths);
+    for (Path p: paths)
+      Files.delete(p);
+  }
+
+  /**
+   * Sets whether to reuse the output of a previous run in the data location.
+   *
+   * @param incremental false to reprocess every record.
+   **/
+  public void setIncremental(boolean incremental)
+  {
+    this.incremental = incremental;
+  }
+
+  /**
+   * Sets roughly how much memory the Preprocessor may use.  If processing the
+   * data in memory looks like it would use more, it's processed on disk
+   * instead, spilling sorted runs of (fingerprint, record offset) pairs to
+   * temp files and merging them.
+   *
+   * @param bytes the memory budget in bytes.
+   **/
+  public void setMemoryBudget(long bytes)
+  {
+    this.memoryBudget = bytes;
+  }
+
+  /**
+   * Sets the maximum source and target lengths, and what to do with records
+   * that go over them.
+   *
+   * @param policy the length policy, or null to keep every record as it is.
+   **/
+  public void setLengthPolicy(LengthPolicy policy)
+  {
+    this.lengthPolicy = policy;
+  }
+
+  /**
+   * Sets what to do with a method that would otherwise end up in more than
+   * one of the test/train/dev splits.
+   *
+   * @param policy the leakage policy.
+   **/
+  public void setLeakagePolicy(LeakageIndex.Policy policy)
+  {
+    this.leakagePolicy = policy;
+  }
+
+  /**
+   * Gets the number of records carried over unchanged from a previous run.
+   *
+   * @return the number of carried over records.
+   **/
+  public long getNumberOfCarriedRecords()
+  {
+    return carriedIds.size();
+  }
+
+  /**
+   * Gets the subtoken counts of the tokenised methods written to a split.
+   *
+   * @param split test, train or dev.
+   * @return the subtoken counts, or null if they weren't counted.
+   **/
+  public TokenCounts getCodeCounts(String split)
+  {
+    return codeCounts.get(split);
+  }
+
+  /**
+   * Gets the word counts of the summaries written to a split.
+   *
+   * @param split test, train or dev.
+   * @return the summary word counts, or null if they weren't counted.
+   **/
+  public TokenCounts getSummaryCounts(String split)
+  {
+    return summaryCounts.get(split);
+  }
+
   /**
    * Gets the number of good methods.
    *
@@ -112,6 +421,7 @@ public class JavaDatasetPreprocessor
 
   /**
    * Gets data from the Funcom dataset, and stores it in ArrayLists.
+   * Methods and comments are paired up by their record id.
    *
    * @param dataLocation where to look for the data.
    * @throws IOException
@@ -121,13 +431,154 @@ public class JavaDatasetPreprocessor
     FileSystem fS = FileSystems.getDefault();
     String functions = Files.readString(fS.getPath(dataLocation + "functions.json"));
     JSONObject functionsJSON = new JSONObject(functions);
-    for (String id: functionsJSON.keySet())
-      methods.add(functionsJSON.getString(id));
 
     String comments = Files.readString(fS.getPath(dataLocation + "comments.json"));
     JSONObject commentsJSON = new JSONObject(comments);
-    for (String id: commentsJSON.keySet())
-      summaries.add(commentsJSON.getString(id));
+    for (String id: functionsJSON.keySet())
+    {
+      if (!commentsJSON.has(id))
+        continue;
+      String method = functionsJSON.getString(id);
+      String summary = commentsJSON.getString(id);
+      ids.add(id);
+      methods.add(method);
+      summaries.add(summary);
+      recordHashes.put(id, RunManifest.hash(method, summary));
+    }
+  }
+
+  /**
+   * Diffs the data against the manifest a previous run left in the data
+   * location.  Records whose content hasn't changed are set aside along with
+   * their already processed output, in the order it was written, so only
+   * added or changed records go through the rest of the pipeline.  Unchanged
+   * records the previous run couldn't parse or found too long stay out
+   * without being parsed again.  Unchanged records it processed but didn't
+   * use, as repeats, over the 500k or leaking, are carried over after the
+   * written ones and checked again against the current records, as whether
+   * they're used depends on the others.  If the previous run had different
+   * settings, nothing is reused.
+   *
+   * @throws IOException
+   **/
+  public void diffAgainstManifest() throws IOException
+  {
+    if (!incremental)
+      return;
+    previousManifest = RunManifest.load(dataLocation);
+    if (previousManifest.size() == 0)
+      return;
+    if (!previousManifest.getSettings().equals(getSettings()))
+    {
+      System.out.println("Settings changed since the previous run, reprocessing everything.");
+      previousManifest = new RunManifest();
+      return;
+    }
+    HashMap<String, String[][]> previousOutput = new HashMap<>();
+    for (String split: new String[]{"test", "train", "dev", RunManifest.UNUSED})
+    {
+      String[][] output = readSplit(dataLocation + split);
+      if (output != null)
+        previousOutput.put(split, output);
+    }
+
+    ArrayList<String> newIds = new ArrayList<>();
+    ArrayList<String> newMethods = new ArrayList<>();
+    ArrayList<String> newSummaries = new ArrayList<>();
+    ArrayList<String> carried = new ArrayList<>();
+    long leftOut = 0;
+    for (int cnt = 0; cnt < ids.size(); cnt++)
+    {
+      String id = ids.get(cnt);
+      RunManifest.Entry entry = previousManifest.get(id);
+      boolean unchanged = entry != null && entry.hash.equals(recordHashes.get(id));
+      String[][] output = unchanged && entry.hasOutput() ? previousOutput.get(entry.split) : null;
+      if (unchanged && !entry.hasOutput())
+      {
+        if (RunManifest.UNPARSABLE.equals(entry.split))
+        {
+          unparsableIds.add(id);
+          badMethods++;
+        } else
+          tooLongIds.add(id);
+        unchangedIds.add(id);
+        leftOut++;
+      } else if (output != null && entry.line < output[0].length)
+      {
+        carried.add(id);
+        unchangedIds.add(id);
+      } else
+      {
+        newIds.add(id);
+        newMethods.add(methods.get(cnt));
+        newSummaries.add(summaries.get(cnt));
+      }
+    }
+    ids = newIds;
+    methods = newMethods;
+    summaries = newSummaries;
+    // the written records first, in the order they were written, then the
+    // unused ones in the order they were set aside.
+    carried.sort(Comparator.comparing((String id) -> !previousManifest.get(id).isWritten())
+      .thenComparingInt(id -> previousManifest.get(id).line));
+    for (String id: carried)
+    {
+      RunManifest.Entry entry = previousManifest.get(id);
+      String[][] output = previousOutput.get(entry.split);
+      carriedIds.add(id);
+      carriedMethods.add(output[0][entry.line]);
+      carriedTokenisedMethods.add(output[1][entry.line]);
+      carriedSummaries.add(output[2][entry.line]);
+    }
+    goodMethods += carriedIds.size();
+    System.out.println(carriedIds.size() + " records unchanged, "
+      + leftOut + " unchanged and left out, "
+      + ids.size() + " added or changed.");
+  }
+
+  /**
+   * Describes the settings that decide what a record is written as, for the
+   * manifest.
+   *
+   * @return the settings.
+   **/
+  private String getSettings()
+  {
+    String length = lengthPolicy == null ? "none"
+      : lengthPolicy.getMaxSourceLength() + "/" + lengthPolicy.getMaxTargetLength()
+        + "/" + lengthPolicy.getMode();
+    return "version=" + OUTPUT_VERSION
+      + ";maxRecords=" + MAX_RECORDS
+      + ";length=" + length
+      + ";leakage=" + leakagePolicy;
+  }
+
+  /**
+   * Reads the files of a split written by a previous run.
+   *
+   * @param dir the split directory.
+   * @return the methods, tokenised methods and summaries, or null if the
+   * split is missing or its files don't line up.
+   * @throws IOException
+   **/
+  private String[][] readSplit(String dir) throws IOException
+  {
+    FileSystem fS = FileSystems.getDefault();
+    String[] files = {SplitWriter.METHOD_FILE, SplitWriter.TOKENISED_FILE, SplitWriter.SUMMARY_FILE};
+    String[][] output = new String[files.length][];
+    for (int cnt = 0; cnt < files.length; cnt++)
+    {
+      Path path = fS.getPath(dir + "/" + files[cnt]);
+      if (!Files.exists(path))
+        return null;
+      String contents = Files.readString(path);
+      // Every line the SplitWriter writes ends in a newline.
+      output[cnt] = contents.isEmpty() ? new String[0]
+        : contents.substring(0, contents.length() - 1).split("\n", -1);
+      if (output[cnt].length != output[0].length)
+        return null;
+    }
+    return output;
   }
 
   /**
@@ -136,32 +587,56 @@ public class JavaDatasetPreprocessor
    **/
   public void trimToValidData()
   {
+    ArrayList<String> newMethods = new ArrayList<>();
+    ArrayList<String> newSummaries = new ArrayList<>();
+    ArrayList<String> newIds = new ArrayList<>();
     for (int cnt = 0; cnt < methods.size(); cnt++)
     {
       JavaParser jp = JP.createJavaParser(false);
-      ParseResult<BodyDeclaration<?>> result = jp.parseBodyDeclaration(methods.get(cnt));
-      try
+      String method = removeComments(jp, methods.get(cnt));
+      if (method != null)
       {
-        BodyDeclaration<?> thing = result.getResult().get();
-        JP.removeComments(thing);
-        methods.set(cnt, "" + result.getResult().get() + "");
+        newMethods.add(method);
+        newSummaries.add(summaries.get(cnt));
+        newIds.add(ids.get(cnt));
         goodMethods++;
-      } catch (NoSuchElementException e)
+      } else
       {
         badMethods++;
-        methods.remove(cnt);
-        summaries.remove(cnt);
+        unparsableIds.add(ids.get(cnt));
         System.out.println("could not parse:\n" + methods.get(cnt));
         System.out.println("\n++++++++++++++++++++++++++++++++++++++++++++++++++++++");
       }
     }
+    methods = newMethods;
+    summaries = newSummaries;
+    ids = newIds;
+  }
+
+  /**
+   * Parses a single method and removes any comments from it, other than its
+   * Javadoc.
+   *
+   * @param jp the parser to use.
+   * @param method the method.
+   * @return the method without comments, or null if it couldn't be parsed.
+   **/
+  public static String removeComments(JavaParser jp, String method)
+  {
+    ParseResult<BodyDeclaration<?>> result = jp.parseBodyDeclaration(method);
+    if (result.getResult().isEmpty())
+      return null;
+    BodyDeclaration<?> thing = result.getResult().get();
+    JP.removeComments(thing);
+    return "" + thing + "";
   }
 
   /**
    * Shrinks both ArrayLists to the first 500k records.
    * NB: We actually shrink to 800k, because there's a lot of un-parsable
    * methods, but we'll only use 500k of these.  The only reason we shrink now
-   * as well is to save on memory.
+   * as well is to save on memory.  Records cut here aren't in the manifest,
+   * so the next run processes them again.
    **/
   public void shrinkLists()
   {
@@ -170,6 +645,8 @@ public class JavaDatasetPreprocessor
       methods.remove(methods.size() - 1);
     while(summaries.size() > 800000)
       summaries.remove(summaries.size() - 1);
+    while(ids.size() > 800000)
+      ids.remove(ids.size() - 1);
   }
 
   /**
@@ -177,7 +654,18 @@ public class JavaDatasetPreprocessor
    **/
   public void stripHTMLFromSummaries()
   {
-    summaries.replaceAll(s1 -> s1.replaceAll("<[^<]+?>", " "));
+    summaries.replaceAll(JavaDatasetPreprocessor::stripHTML);
+  }
+
+  /**
+   * Strips HTML tags from a single summary, using a RegEx.
+   *
+   * @param s the summary.
+   * @return the summary without HTML tags.
+   **/
+  public static String stripHTML(String s)
+  {
+    return s.replaceAll("<[^<]+?>", " ");
   }
 
   /**
@@ -186,22 +674,27 @@ public class JavaDatasetPreprocessor
    **/
   public void extractAssumedSummaryFromJdoc()
   {
-    for (int cnt = 0; cnt < summaries.size(); cnt++)
+    summaries.replaceAll(JavaDatasetPreprocessor::extractAssumedSummary);
+  }
+
+  /**
+   * Extracts the data we hope is a summary from a single Javadoc comment.
+   *
+   * @param s the Javadoc comment.
+   * @return the first line of text with more than 8 non-space characters,
+   * or the comment as it is if there isn't one.
+   **/
+  public static String extractAssumedSummary(String s)
+  {
+    String[] parts = s.split("\n");
+    for (String line: parts)
     {
-      String s = summaries.get(cnt);
-      String[] parts = s.split("\n");
-      for (String line: parts)
-      {
-        String trimmedLine = line.replaceAll("\t", " ");
-        trimmedLine = trimmedLine.trim();
-        if (trimmedLine.length() > 8)
-        {
-          s = line.trim();
-          break;
-        }
-      }
-      summaries.set(cnt, s);
+      String trimmedLine = line.replaceAll("\t", " ");
+      trimmedLine = trimmedLine.trim();
+      if (trimmedLine.length() > 8)
+        return line.trim();
     }
+    return s;
   }
 
   /**
@@ -217,28 +710,184 @@ public class JavaDatasetPreprocessor
    **/
   public void stripSpecialCharsFromSummaries()
   {
-    summaries.replaceAll(s1 -> s1.replaceAll("[^a-z0-9 .']", " "));
+    summaries.replaceAll(JavaDatasetPreprocessor::stripSpecialChars);
+  }
+
+  /**
+   * Strips special chars from a single lowercased summary using a RegEx.
+   *
+   * @param s the summary.
+   * @return the summary without special chars.
+   **/
+  public static String stripSpecialChars(String s)
+  {
+    return s.replaceAll("[^a-z0-9 .']", " ");
+  }
+
+  /**
+   * Cleans a single Javadoc comment the same way the summaries are cleaned:
+   * strips HTML, extracts the summary, lowercases it and strips special chars.
+   *
+   * @param s the Javadoc comment.
+   * @return the cleaned summary.
+   **/
+  public static String cleanSummary(String s)
+  {
+    return stripSpecialChars(extractAssumedSummary(stripHTML(s)).toLowerCase());
+  }
+
+  /**
+   * Drops records whose summary, once cleaned, has more words than the
+   * length policy allows, if the policy drops records.  The summary doesn't
+   * depend on parsing the method, so this runs before trimToValidData(), the
+   * slowest stage, to save parsing records that would be dropped anyway.
+   **/
+  public void dropLongSummaries()
+  {
+    if (lengthPolicy == null || lengthPolicy.getMode() != LengthPolicy.Mode.DROP)
+      return;
+    ArrayList<String> newMethods = new ArrayList<>();
+    ArrayList<String> newSummaries = new ArrayList<>();
+    ArrayList<String> newIds = new ArrayList<>();
+    for (int cnt = 0; cnt < summaries.size(); cnt++)
+    {
+      if (LengthPolicy.countTokens(cleanSummary(summaries.get(cnt))) > lengthPolicy.getMaxTargetLength())
+      {
+        tooLongIds.add(ids.get(cnt));
+        continue;
+      }
+      newMethods.add(methods.get(cnt));
+      newSummaries.add(summaries.get(cnt));
+      newIds.add(ids.get(cnt));
+    }
+    System.out.println((summaries.size() - newSummaries.size()) + " records with summaries over the length limit.");
+    methods = newMethods;
+    summaries = newSummaries;
+    ids = newIds;
+  }
+
+  /**
+   * Applies the length policy, using the subtoken count the tokeniser would
+   * give each method and the word count of each summary.  This runs as soon
+   * as the summaries are cleaned, so records that are dropped never reach
+   * the repeat removal, tokenising or writing.  The tokenised methods are
+   * kept for tokeniseMethods() to reuse.  Truncated summaries are cut
+   * here, truncated subtokens when the methods are tokenised, and flagged
+   * records are listed in length_flags.txt.  Records carried over from a
+   * previous run were checked by that run, which had the same policy, so
+   * their flags are kept from its length_flags.txt.
+   *
+   * @throws IOException
+   **/
+  public void applyLengthPolicy() throws IOException
+  {
+    if (lengthPolicy == null)
+      return;
+    String[] tokenised = new String[methods.size()];
+    int[] sourceLengths = new int[methods.size()];
+    IntStream.range(0, methods.size()).parallel().forEach(cnt ->
+    {
+      tokenised[cnt] = tokeniseMethod(methods.get(cnt));
+      sourceLengths[cnt] = LengthPolicy.countTokens(tokenised[cnt]);
+    });
+
+    ArrayList<String> newMethods = new ArrayList<>();
+    ArrayList<String> newSummaries = new ArrayList<>();
+    ArrayList<String> newIds = new ArrayList<>();
+    ArrayList<String> newTokenised = new ArrayList<>();
+    StringBuilder flagged = new StringBuilder();
+    long tooLong = 0;
+    for (int cnt = 0; cnt < methods.size(); cnt++)
+    {
+      String summary = summaries.get(cnt);
+      int targetLength = LengthPolicy.countTokens(summary);
+      if (lengthPolicy.exceeds(sourceLengths[cnt], targetLength))
+      {
+        tooLong++;
+        if (lengthPolicy.getMode() == LengthPolicy.Mode.DROP)
+        {
+          tooLongIds.add(ids.get(cnt));
+          continue;
+        }
+        if (lengthPolicy.getMode() == LengthPolicy.Mode.TRUNCATE)
+          summary = LengthPolicy.truncate(summary, lengthPolicy.getMaxTargetLength());
+        else
+          flagged.append(ids.get(cnt)).append(" ").append(sourceLengths[cnt])
+            .append(" ").append(targetLength).append("\n");
+      }
+      newMethods.add(methods.get(cnt));
+      newSummaries.add(summary);
+      newIds.add(ids.get(cnt));
+      newTokenised.add(tokenised[cnt]);
+    }
+    methods = newMethods;
+    summaries = newSummaries;
+    ids = newIds;
+    tokenisedMethodCache = newTokenised;
+    System.out.println(tooLong + " records over the length limits ("
+      + lengthPolicy.getMode().toString().toLowerCase() + ").");
+
+    if (lengthPolicy.getMode() == LengthPolicy.Mode.FLAG)
+    {
+      String dir = outputLocation == null ? dataLocation : outputLocation;
+      Path path = FileSystems.getDefault().getPath(dir + "length_flags.txt");
+      StringBuilder kept = new StringBuilder();
+      if (!unchangedIds.isEmpty() && Files.exists(path))
+        for (String line: Files.readAllLines(path))
+          if (unchangedIds.contains(line.substring(0, line.indexOf(' '))))
+            kept.append(line).append("\n");
+      FileWriter fp = new FileWriter(path.toFile());
+      fp.write(kept.toString());
+      fp.write(flagged.toString());
+      fp.close();
+    }
   }
 
   /**
    * Saves the data we've processed into two big files, mainly for debugging.
+   * Records carried over from a previous run are saved along with the ones
+   * processed this run, in the order they were read, and every record is
+   * saved as it's written to the splits, on one line, so a rerun saves the
+   * same files as processing everything again.
    *
    * @param dir where to save them.
    * @throws IOException
    **/
   public void saveData(String dir) throws IOException
   {
+    HashMap<String, Integer> processed = new HashMap<>();
+    for (int cnt = 0; cnt < ids.size(); cnt++)
+      processed.put(ids.get(cnt), cnt);
+    HashMap<String, Integer> carried = new HashMap<>();
+    for (int cnt = 0; cnt < carriedIds.size(); cnt++)
+      carried.put(carriedIds.get(cnt), cnt);
+    ArrayList<String> savedMethods = new ArrayList<>();
+    ArrayList<String> savedSummaries = new ArrayList<>();
+    for (String id: recordHashes.keySet())
+    {
+      Integer cnt = processed.get(id);
+      if (cnt != null)
+      {
+        savedMethods.add(methods.get(cnt).replaceAll("\n", " "));
+        savedSummaries.add(summaries.get(cnt).replaceAll("\n", " ").trim());
+      } else if ((cnt = carried.get(id)) != null)
+      {
+        savedMethods.add(carriedMethods.get(cnt));
+        savedSummaries.add(carriedSummaries.get(cnt));
+      }
+    }
+
     FileSystem fS = FileSystems.getDefault();
     Path methodPath = fS.getPath(dir + "methodsProcessed.json");
     Path summaryPath = fS.getPath(dir + "summariesProcessed.json");
     FileWriter fp = new FileWriter(methodPath.toFile());
-    JSONArray data = new JSONArray(methods);
+    JSONArray data = new JSONArray(savedMethods);
     JSONObject jSON = new JSONObject();
     jSON.append("methods", data);
     fp.write(jSON.toString(4));
     fp.close();
     fp = new FileWriter(summaryPath.toFile());
-    data = new JSONArray(summaries);
+    data = new JSONArray(savedSummaries);
     jSON = new JSONObject();
     jSON.append("summaries", data);
     fp.write(jSON.toString(4));
@@ -246,22 +895,27 @@ public class JavaDatasetPreprocessor
   }
 
   /**
-   * Removes repeat entries from the datasets.
+   * Removes repeat entries from the datasets.  The repeats aren't in the
+   * manifest, so the next run processes them again.
    **/
   public void removeRepeatEntries()
   {
     ArrayList<String> newMethods = new ArrayList<>();
     ArrayList<String> newSummaries = new ArrayList<>();
+    ArrayList<String> newIds = new ArrayList<>();
+    BitSet firsts = findFirstOccurrences(summaries);
     for (int cnt = 0; cnt < summaries.size(); cnt++)
     {
-      if (!newSummaries.contains(summaries.get(cnt)))
+      if (firsts.get(cnt))
       {
         newMethods.add(methods.get(cnt));
         newSummaries.add(summaries.get(cnt));
+        newIds.add(ids.get(cnt));
       }
     }
     methods = new ArrayList<>(newMethods);
     summaries = new ArrayList<>(newSummaries);
+    ids = new ArrayList<>(newIds);
   }
 
   /**
@@ -274,34 +928,128 @@ public class JavaDatasetPreprocessor
   }
 
   /**
-   * Tokenises all methods in the methods ArrayList.
+   * Tokenises a single method: splits it on camel case, spaces out
+   * punctuation and lowercases it.
+   *
+   * @param s the method.
+   * @return the tokenised method.
+   **/
+  public static String tokeniseMethod(String s)
+  {
+    // Split the string on camel case.
+    String[] camelSplitData = s.split("(?<!(^|[A-Z]))(?=[A-Z])|(?<!^)(?=[A-Z][a-z])");
+    StringBuilder tmp = new StringBuilder();
+    for (String c : camelSplitData)
+      tmp.append(" ").append(c);
+    tmp = new StringBuilder(tmp.toString().trim());
+    // Also space out punctuation and lowercase it.
+    String tokenisedMethod = tmp.toString().replaceAll("\\p{Punct}", " $0 ");
+    tokenisedMethod = tokenisedMethod.replaceAll("\\s+", " ");
+    return tokenisedMethod.toLowerCase();
+  }
+
+  /**
+   * Tokenises all methods in the methods ArrayList, in parallel, reusing
+   * the ones applyLengthPolicy() already tokenised.  If the length policy
+   * truncates, the subtokens are cut to the maximum source length.
    *
    * @return ArrayList of tokenised methods.
    **/
   public ArrayList <String> tokeniseMethods()
   {
-    ArrayList<String> tokenisedMethods = new ArrayList<>();
-    for (String s : methods)
+    String[] tokenisedMethods = new String[methods.size()];
+    boolean truncate = lengthPolicy != null && lengthPolicy.getMode() == LengthPolicy.Mode.TRUNCATE;
+    // stripNewlines() since then doesn't change the tokens, as the tokeniser
+    // collapses whitespace; if records were removed since, tokenise afresh.
+    ArrayList<String> cache = tokenisedMethodCache;
+    boolean reuse = cache != null && cache.size() == methods.size();
+    tokenisedMethodCache = null;
+    IntStream.range(0, methods.size()).parallel().forEach(cnt ->
+    {
+      tokenisedMethods[cnt] = reuse ? cache.get(cnt) : tokeniseMethod(methods.get(cnt));
+      if (truncate)
+        tokenisedMethods[cnt] = LengthPolicy.truncate(tokenisedMethods[cnt],
+          lengthPolicy.getMaxSourceLength());
+    });
+    return new ArrayList<>(Arrays.asList(tokenisedMethods));
+  }
+
+  /**
+   * Saves the vocabularies and length statistics counted as the splits were
+   * written, so they don't need another pass over them.  The vocabularies
+   * are the training split's, and stats.json has the statistics of each
+   * split.
+   *
+   * @param dir where to save them.
+   * @throws IOException
+   **/
+  public void saveStatistics(String dir) throws IOException
+  {
+    saveStatistics(dir, true, true);
+  }
+
+  /**
+   * Saves the vocabularies asked for, and their length statistics, and
+   * deletes any that weren't asked for.
+   *
+   * @param dir where to save them.
+   * @param artifacts the artifacts to save.
+   * @throws IOException
+   **/
+  private void saveRequestedStatistics(String dir, Set<Artifact> artifacts) throws IOException
+  {
+    FileSystem fS = FileSystems.getDefault();
+    boolean codeVocabulary = artifacts.contains(Artifact.CODE_VOCABULARY);
+    boolean summaryVocabulary = artifacts.contains(Artifact.SUMMARY_VOCABULARY);
+    if (codeVocabulary || summaryVocabulary)
+      saveStatistics(dir, codeVocabulary, summaryVocabulary);
+    else
+      Files.deleteIfExists(fS.getPath(dir + "stats.json"));
+    if (!codeVocabulary)
+      Files.deleteIfExists(fS.getPath(dir + "vocab.code"));
+    if (!summaryVocabulary)
+      Files.deleteIfExists(fS.getPath(dir + "vocab.javadoc"));
+  }
+
+  /**
+   * Saves the code and/or summary vocabularies, and their length statistics.
+   * Vocabularies that weren't counted are left out.
+   *
+   * @param dir where to save them.
+   * @param code whether to save the code vocabulary.
+   * @param summary whether to save the summary vocabulary.
+   * @throws IOException
+   **/
+  private void saveStatistics(String dir, boolean code, boolean summary) throws IOException
+  {
+    FileSystem fS = FileSystems.getDefault();
+    code &= codeCounts.containsKey("train");
+    summary &= summaryCounts.containsKey("train");
+    if (code)
+      codeCounts.get("train").saveVocabulary(fS.getPath(dir + "vocab.code"));
+    if (summary)
+      summaryCounts.get("train").saveVocabulary(fS.getPath(dir + "vocab.javadoc"));
+    JSONObject jSON = new JSONObject();
+    for (String split: new String[]{"test", "train", "dev"})
     {
-      // Split the string on camel case.
-      String[] camelSplitData = s.split("(?<!(^|[A-Z]))(?=[A-Z])|(?<!^)(?=[A-Z][a-z])");
-      StringBuilder tmp = new StringBuilder();
-      for (String c : camelSplitData)
-        tmp.append(" ").append(c);
-      tmp = new StringBuilder(tmp.toString().trim());
-      // Also space out punctuation and lowercase it.
-      String tokenisedMethod = tmp.toString().replaceAll("\\p{Punct}", " $0 ");
-      tokenisedMethod = tokenisedMethod.replaceAll("\\s+", " ");
-      tokenisedMethods.add(tokenisedMethod.toLowerCase());
+      JSONObject splitJSON = new JSONObject();
+      if (code)
+        splitJSON.put("code", codeCounts.get(split).toJSON());
+      if (summary)
+        splitJSON.put("javadoc", summaryCounts.get(split).toJSON());
+      jSON.put(split, splitJSON);
     }
-    return tokenisedMethods;
+    FileWriter fp = new FileWriter(fS.getPath(dir + "stats.json").toFile());
+    fp.write(jSON.toString(4));
+    fp.close();
   }
 
   /**
    * Removes repeat data from the datasets - including a tokenised one if
-   * passed as a parameter.
+   * passed as a parameter.  The repeats are kept for
+   * prepareDataForNeuralCodeSum() to set aside as unused.
    *
-   * @param tokenisedMethods the dataset of tokenised methods.
+   * @param tokenisedMethods the dataset of tokenised methods, or null.
    * @return the dataset of tokenised methods with repeat data removed.
    **/
   public ArrayList<String> removeRepeatData(ArrayList<String> tokenisedMethods)
@@ -309,21 +1057,48 @@ public class JavaDatasetPreprocessor
     ArrayList<String> newMethods = new ArrayList<>();
     ArrayList<String> newTokMethods = new ArrayList<>();
     ArrayList<String> newSummaries = new ArrayList<>();
+    ArrayList<String> newIds = new ArrayList<>();
+    BitSet firsts = findFirstOccurrences(summaries);
     for (int cnt = 0; cnt < summaries.size(); cnt++)
     {
-      if (!newSummaries.contains(summaries.get(cnt)))
+      if (firsts.get(cnt))
       {
         newMethods.add(methods.get(cnt));
-        newTokMethods.add(tokenisedMethods.get(cnt));
+        if (tokenisedMethods != null)
+          newTokMethods.add(tokenisedMethods.get(cnt));
         newSummaries.add(summaries.get(cnt));
-      }
+        newIds.add(ids.get(cnt));
+      } else
+        repeatRecords.add(new String[]{ids.get(cnt),
+          methods.get(cnt),
+          tokenisedMethods == null ? null : tokenisedMethods.get(cnt),
+          summaries.get(cnt)});
     }
     methods = new ArrayList<>(newMethods);
     summaries = new ArrayList<>(newSummaries);
+    ids = new ArrayList<>(newIds);
+    if (tokenisedMethods == null)
+      return null;
     tokenisedMethods = new ArrayList<>(newTokMethods);
     return tokenisedMethods;
   }
 
+  /**
+   * Finds the first occurrence of each distinct value in a list.
+   *
+   * @param values the list.
+   * @return the indexes of the first occurrences.
+   **/
+  private BitSet findFirstOccurrences(ArrayList<String> values)
+  {
+    BitSet firsts = new BitSet(values.size());
+    HashSet<String> seen = new HashSet<>();
+    for (int cnt = 0; cnt < values.size(); cnt++)
+      if (seen.add(values.get(cnt)))
+        firsts.set(cnt);
+    return firsts;
+  }
+
   /**
    * Generates the random order in which to split the dataset.
    *
@@ -339,77 +1114,216 @@ public class JavaDatasetPreprocessor
     return randomOrder;
   }
 
+  /**
+   * Picks the split for a record.  Records a previous run already wrote stay
+   * in the same split, the rest are split 10/80/10, up to the room left in
+   * the 500k.  When repeats are kept together, the split comes from the
+   * method's body, so every copy of it lands in the same split whatever its
+   * place in the random order; otherwise it comes from the record's position.
+   *
+   * @param id the record id.
+   * @param method the method.
+   * @param position the number of records without a previous split that
+   * were written before this one.
+   * @param total the number of those records to split.
+   * @return the split, or null if the record isn't used.
+   **/
+  public String assignSplit(String id, String method, int position, int total)
+  {
+    RunManifest.Entry entry = previousManifest.get(id);
+    if (entry != null && entry.isWritten())
+      return entry.split;
+    if (position >= total)
+      return null;
+    if (leakagePolicy == LeakageIndex.Policy.KEEP_TOGETHER)
+    {
+      int bucket = LeakageIndex.bucket(method, 10);
+      return bucket == 0 ? "test" : bucket == 9 ? "dev" : "train";
+    }
+    if (position < total / 10)
+      return "test";
+    if (position < total - total / 10)
+      return "train";
+    return "dev";
+  }
+
   /**
    * Prepares and saves the data in the format needed by NeuralCodeSum.
-   * Big ugly monstrosity, should probably be refactored.
+   * Records carried over from a previous run are written back first, in the
+   * order they were, and count against the 500k; a manifest of where every
+   * record went, or that it was left out, is saved for the next run.
+   * Repeats, records over the 500k and records dropped for leaking are set
+   * aside in the unused directory, for the next run to check again.
+   * Methods whose normalised body or tokenised form has already gone to
+   * another split are handled by the leakage policy.  This writes the
+   * default artifacts; to also write the columnar files, pass
+   * Artifact.COLUMNAR to prepareDataForNeuralCodeSum(dir, artifacts).
    *
    * @param dir where to save them.
    * @throws IOException
    */
   public void prepareDataForNeuralCodeSum(String dir) throws IOException
   {
-    // make test/train/dev dirs
+    EnumSet<Artifact> artifacts = EnumSet.copyOf(Artifact.DEFAULT);
+    artifacts.remove(Artifact.JSON_DUMP);
+    prepareDataForNeuralCodeSum(dir, artifacts);
+  }
+
+  /**
+   * Prepares and saves only the given NeuralCodeSum artifacts, skipping the
+   * tokenising if none of them need it, and the splits if none are in them
+   * or counted from them.
+   * If not all the split text files are written, they're saved under
+   * PARTIAL_DIR instead, and the splits and manifest of the last full run
+   * are left alone.  Files in the directory saved to that weren't asked for
+   * are deleted, as they wouldn't line up with the new ones.
+   *
+   * @param dir the data location.
+   * @param artifacts the artifacts to save; JSON_DUMP is ignored.
+   * @throws IOException
+   */
+  public void prepareDataForNeuralCodeSum(String dir, Set<Artifact> artifacts) throws IOException
+  {
     FileSystem fS = FileSystems.getDefault();
-    Path testPath = fS.getPath(dir + "test");
-    Files.createDirectories(testPath);
-    Path trainPath = fS.getPath(dir + "train");
-    Files.createDirectories(trainPath);
-    Path devPath = fS.getPath(dir + "dev");
-    Files.createDirectories(devPath);
+    dir = getOutputLocation(dir, artifacts);
+    boolean tokenise = Artifact.needTokens(artifacts);
 
     // strip newlines
     stripNewlines();
 
+    if (!Artifact.needSplits(artifacts))
+      return;
+
     // make tokenised version of the code
-    ArrayList<String> tokenisedMethods = tokeniseMethods();
+    ArrayList<String> tokenisedMethods = null;
+    if (tokenise)
+      tokenisedMethods = tokeniseMethods();
+
+    // add the records carried over from the previous run in front, so they
+    // win over any new repeats of them.
+    ids.addAll(0, carriedIds);
+    methods.addAll(0, carriedMethods);
+    if (tokenisedMethods != null)
+      tokenisedMethods.addAll(0, carriedTokenisedMethods);
+    summaries.addAll(0, carriedSummaries);
 
     // remove repeat data if it's still present.
     tokenisedMethods = removeRepeatData(tokenisedMethods);
 
     // generate random order
-    ArrayList<Integer> randomOrder = generateSeed(500000);
+    ArrayList<Integer> randomOrder = generateSeed(methods.size());
+    int total = Math.min(MAX_RECORDS, methods.size());
 
     // save the files in dirs 10/80/10
-    Path testMethodPath = fS.getPath(testPath.toString() + "/code.original");
-    Path testTokenisedPath = fS.getPath(testPath.toString() + "/code.original_subtoken");
-    Path testSummaryPath = fS.getPath(testPath.toString() + "/javadoc.original");
-    FileWriter fp = new FileWriter(testMethodPath.toFile());
-    FileWriter fp1 = new FileWriter(testTokenisedPath.toFile());
-    FileWriter fp2 = new FileWriter(testSummaryPath.toFile());
-    for (int cnt = 0; cnt < 50000; cnt++)
-    {
-      fp.write(methods.get(randomOrder.get(cnt)) + "\n");
-      fp1.write(tokenisedMethods.get(randomOrder.get(cnt)) + "\n");
-      fp2.write(summaries.get(randomOrder.get(cnt)).trim() + "\n");
-    }
-    fp.close();fp1.close();fp2.close();
-
-    Path trainMethodPath = fS.getPath(trainPath.toString() + "/code.original");
-    Path trainTokenisedPath = fS.getPath(trainPath.toString() + "/code.original_subtoken");
-    Path trainSummaryPath = fS.getPath(trainPath.toString() + "/javadoc.original");
-    fp = new FileWriter(trainMethodPath.toFile());
-    fp1 = new FileWriter(trainTokenisedPath.toFile());
-    fp2 = new FileWriter(trainSummaryPath.toFile());
-    for (int cnt = 50000; cnt < 450000; cnt++)
+    RunManifest manifest = new RunManifest();
+    manifest.setSettings(getSettings());
+    LeakageIndex leakageIndex = new LeakageIndex(leakagePolicy,
+      new String[]{"test", "train", "dev"},
+      methods.size());
+    for (String id: unparsableIds)
+      manifest.put(id, recordHashes.get(id), RunManifest.UNPARSABLE, -1);
+    for (String id: tooLongIds)
+      manifest.put(id, recordHashes.get(id), RunManifest.TOO_LONG, -1);
+    ExecutorService columnarPool = artifacts.contains(Artifact.COLUMNAR)
+      ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+      : null;
+    // the writers are closed and the pool shut down even if a write fails,
+    // or the pool's threads would keep the JVM running.
+    try (SplitWriter test = new SplitWriter(fS.getPath(dir + "test"), artifacts, columnarPool);
+      SplitWriter train = new SplitWriter(fS.getPath(dir + "train"), artifacts, columnarPool);
+      SplitWriter dev = new SplitWriter(fS.getPath(dir + "dev"), artifacts, columnarPool);
+      SplitWriter unused = Artifact.allSplitFiles(artifacts)
+        ? new SplitWriter(fS.getPath(dir + RunManifest.UNUSED), UNUSED_ARTIFACTS, null)
+        : null)
     {
-      fp.write(methods.get(randomOrder.get(cnt)) + "\n");
-      fp1.write(tokenisedMethods.get(randomOrder.get(cnt)) + "\n");
-      fp2.write(summaries.get(randomOrder.get(cnt)).trim() + "\n");
-    }
-    fp.close();fp1.close();fp2.close();
-
-    Path devMethodPath = fS.getPath(devPath.toString() + "/code.original");
-    Path devTokenisedPath = fS.getPath(devPath.toString() + "/code.original_subtoken");
-    Path devSummaryPath = fS.getPath(devPath.toString() + "/javadoc.original");
-    fp = new FileWriter(devMethodPath.toFile());
-    fp1 = new FileWriter(devTokenisedPath.toFile());
-    fp2 = new FileWriter(devSummaryPath.toFile());
-    for (int cnt = 450000; cnt < 500000; cnt++)
+      HashMap<String, SplitWriter> writers = new HashMap<>();
+      writers.put("test", test);
+      writers.put("train", train);
+      writers.put("dev", dev);
+      for (String[] repeat: repeatRecords)
+        setAside(manifest, unused, repeat[0], repeat[1], repeat[2], repeat[3]);
+      repeatRecords.clear();
+      // records a previous run already split go first, in order, so they keep
+      // their split and line; the rest fill what's left of the 500k.
+      int room = total;
+      ArrayList<Integer> unusedRecords = new ArrayList<>();
+      for (int pass = 0; pass < 2; pass++)
+      {
+        int position = 0;
+        for (int cnt = 0; cnt < randomOrder.size(); cnt++)
+        {
+          int record = pass == 0 ? cnt : randomOrder.get(cnt);
+          String id = ids.get(record);
+          RunManifest.Entry entry = previousManifest.get(id);
+          if ((entry != null && entry.isWritten()) != (pass == 0))
+            continue;
+          String split = assignSplit(id, methods.get(record), position, room);
+          String tokenisedMethod = tokenisedMethods == null ? null : tokenisedMethods.get(record);
+          if (split != null && writers.containsKey(split))
+            split = leakageIndex.check(methods.get(record), tokenisedMethod, split);
+          else
+            split = null;
+          if (split == null)
+          {
+            unusedRecords.add(record);
+            continue;
+          }
+          int line = writers.get(split).write(methods.get(record),
+            tokenisedMethod,
+            summaries.get(record));
+          manifest.put(id, recordHashes.get(id), split, line);
+          if (pass == 0)
+            room--;
+          else
+            position++;
+        }
+      }
+      // set aside in their original order, so a rerun sets them aside the same.
+      Collections.sort(unusedRecords);
+      for (int record: unusedRecords)
+        setAside(manifest, unused, ids.get(record),
+          methods.get(record),
+          tokenisedMethods == null ? null : tokenisedMethods.get(record),
+          summaries.get(record));
+      codeCounts.clear();
+      summaryCounts.clear();
+      for (Map.Entry<String, SplitWriter> writer: writers.entrySet())
+      {
+        if (writer.getValue().getCodeCounts() != null)
+          codeCounts.put(writer.getKey(), writer.getValue().getCodeCounts());
+        if (writer.getValue().getSummaryCounts() != null)
+          summaryCounts.put(writer.getKey(), writer.getValue().getSummaryCounts());
+      }
+    } finally
     {
-      fp.write(methods.get(randomOrder.get(cnt)) + "\n");
-      fp1.write(tokenisedMethods.get(randomOrder.get(cnt)) + "\n");
-      fp2.write(summaries.get(randomOrder.get(cnt)).trim() + "\n");
+      if (columnarPool != null)
+        columnarPool.shutdown();
     }
-    fp.close();fp1.close();fp2.close();
+    saveRequestedStatistics(dir, artifacts);
+    if (Artifact.allSplitFiles(artifacts))
+      manifest.save(dir);
+    System.out.print(leakageIndex.report());
+  }
+
+  /**
+   * Sets a processed record aside as unused, so the next run can check it
+   * again without processing it.
+   *
+   * @param manifest the manifest to record it in.
+   * @param unused the writer for the unused records, or null if they aren't
+   * kept.
+   * @param id the record id.
+   * @param method the method.
+   * @param tokenisedMethod the tokenised method.
+   * @param summary the summary.
+   * @throws IOException
+   **/
+  private void setAside(RunManifest manifest, SplitWriter unused, String id,
+    String method, String tokenisedMethod, String summary) throws IOException
+  {
+    if (unused == null)
+      return;
+    int line = unused.write(method, tokenisedMethod, summary);
+    manifest.put(id, recordHashes.get(id), RunManifest.UNUSED, line);
   }
 }
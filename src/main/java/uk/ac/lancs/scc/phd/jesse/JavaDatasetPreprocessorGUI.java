@@ -95,6 +95,17 @@ public class JavaDatasetPreprocessorGUI
       showError("Couldn't find data! " + e.getMessage());
       return;
     }
+    messageLabel.setText("Comparing data against the previous run's manifest.");
+    try
+    {
+      jDP.diffAgainstManifest();
+    } catch (IOException e)
+    {
+      showError("Couldn't read the previous run! " + e.getMessage());
+      return;
+    }
+    messageLabel.setText("Dropping records with summaries over the length limit.");
+    jDP.dropLongSummaries();
     messageLabel.setText("Trimming methods list to valid methods only.");
     jDP.trimToValidData();
     messageLabel.setText("Removing repeat entries.");
@@ -111,6 +122,8 @@ public class JavaDatasetPreprocessorGUI
     jDP.stripSpecialCharsFromSummaries();
     try
     {
+      messageLabel.setText("Applying the length policy.");
+      jDP.applyLengthPolicy();
       jDP.saveData(jDP.getDataLocation());
       jDP.prepareDataForNeuralCodeSum(jDP.getDataLocation());
       showMessage("Data saved at:" + jDP.getDataLocation(),
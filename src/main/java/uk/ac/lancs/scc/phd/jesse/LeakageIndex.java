@@ -0,0 +1,278 @@
+/**
+ * LeakageIndex stops the same method ending up in more than one split.
+ * It keeps a 64-bit fingerprint of each method's normalised body and of its
+ * tokenised form in an open addressing table of primitives, so it stays
+ * small enough for millions of records and needs only a single pass.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+public class LeakageIndex
+{
+  /**
+   * What to do with a record that collides with one in another split.
+   **/
+  public enum Policy
+  {
+    KEEP_TOGETHER, // move it into the split the first copy went to.
+    DROP,          // leave it out.
+    REPORT_ONLY    // keep it where it is, just count it.
+  }
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final Policy policy;
+  private final String[] splits;
+  private long[] keys;
+  private byte[] values;
+  private int size = 0;
+
+  private long records = 0;
+  private long collisions = 0;
+  private long moved = 0;
+  private long dropped = 0;
+  private long[][] leaks;
+
+  /**
+   * Creates an index.
+   *
+   * @param policy what to do with colliding records.
+   * @param splits the names of the splits records can be assigned to.
+   * @param expectedRecords roughly how many records will be checked.
+   **/
+  public LeakageIndex(Policy policy, String[] splits, int expectedRecords)
+  {
+    this.policy = policy;
+    this.splits = splits;
+    this.leaks = new long[splits.length][splits.length];
+    int capacity = 16;
+    // two fingerprints per record, kept under half full.
+    while (capacity < expectedRecords * 4L && capacity < (1 << 30))
+      capacity <<= 1;
+    keys = new long[capacity];
+    values = new byte[capacity];
+  }
+
+  /**
+   * Checks a record against the records already assigned, and records it.
+   *
+   * @param method the method.
+   * @param tokenisedMethod the tokenised method, or null if the methods
+   * weren't tokenised.
+   * @param split the split the record would go to.
+   * @return the split the record should go to, or null if it's dropped.
+   **/
+  public String check(String method, String tokenisedMethod, String split)
+  {
+    records++;
+    long bodyKey = fingerprint(method, bodyStart(method), true);
+    // fingerprints are never 0, so 0 means there's no tokenised form.
+    long tokenKey = tokenisedMethod == null ? 0
+      : fingerprint(tokenisedMethod, tokenisedBodyStart(tokenisedMethod), false);
+    int splitIndex = indexOf(split);
+    int existing = get(bodyKey);
+    if (existing < 0 && tokenKey != 0)
+      existing = get(tokenKey);
+
+    if (existing >= 0)
+    {
+      collisions++;
+      if (existing != splitIndex)
+      {
+        leaks[existing][splitIndex]++;
+        if (policy == Policy.DROP)
+        {
+          dropped++;
+          return null;
+        }
+        if (policy == Policy.KEEP_TOGETHER)
+        {
+          moved++;
+          splitIndex = existing;
+        }
+      }
+    }
+    if (get(bodyKey) < 0)
+      put(bodyKey, splitIndex);
+    if (tokenKey != 0 && get(tokenKey) < 0)
+      put(tokenKey, splitIndex);
+    return splits[splitIndex];
+  }
+
+  /**
+   * Puts a method into one of a number of buckets by its normalised body, so
+   * every copy of the same code lands in the same bucket.
+   *
+   * @param method the method.
+   * @param buckets the number of buckets.
+   * @return the bucket, from 0 to buckets - 1.
+   **/
+  public static int bucket(String method, int buckets)
+  {
+    long h = fingerprint(method, bodyStart(method), true) * 0x9e3779b97f4a7c15L;
+    return (int) Long.remainderUnsigned(h >>> 1, buckets);
+  }
+
+  /**
+   * Gets the number of records that collided with another, in any split.
+   *
+   * @return the number of collisions.
+   **/
+  public long getNumberOfCollisions()
+  {
+    return collisions;
+  }
+
+  /**
+   * Gets the number of records that collided with one in another split.
+   *
+   * @return the number of leaks found.
+   **/
+  public long getNumberOfLeaks()
+  {
+    long total = 0;
+    for (long[] row: leaks)
+      for (long l: row)
+        total += l;
+    return total;
+  }
+
+  /**
+   * Summarises what the index found.
+   *
+   * @return the leakage statistics, one per line.
+   **/
+  public String report()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Leakage policy: ").append(policy).append("\n");
+    sb.append("Records checked: ").append(records).append("\n");
+    sb.append("Repeated methods: ").append(collisions).append("\n");
+    sb.append("Repeated across splits: ").append(getNumberOfLeaks()).append("\n");
+    for (int from = 0; from < splits.length; from++)
+      for (int to = 0; to < splits.length; to++)
+        if (leaks[from][to] > 0)
+          sb.append("  ").append(splits[from]).append(" -> ").append(splits[to])
+            .append(": ").append(leaks[from][to]).append("\n");
+    sb.append("Moved to an earlier copy's split: ").append(moved).append("\n");
+    sb.append("Dropped: ").append(dropped).append("\n");
+    return sb.toString();
+  }
+
+  /**
+   * Finds where a method's body starts, skipping the Javadoc it's stored with
+   * so that the same code with a different summary still collides.
+   *
+   * @param method the method.
+   * @return the index the body starts at.
+   **/
+  private static int bodyStart(String method)
+  {
+    int start = 0;
+    while (start < method.length() && Character.isWhitespace(method.charAt(start)))
+      start++;
+    if (method.startsWith("/**", start))
+    {
+      int end = method.indexOf("*/", start + 3);
+      if (end >= 0)
+        return end + 2;
+    }
+    return start;
+  }
+
+  /**
+   * Finds where a tokenised method's body starts, skipping the Javadoc.
+   *
+   * @param tokenisedMethod the tokenised method.
+   * @return the index the body starts at.
+   **/
+  private static int tokenisedBodyStart(String tokenisedMethod)
+  {
+    int start = 0;
+    while (start < tokenisedMethod.length() && tokenisedMethod.charAt(start) == ' ')
+      start++;
+    if (tokenisedMethod.startsWith("/ * *", start))
+    {
+      int end = tokenisedMethod.indexOf("* /", start + 5);
+      if (end >= 0)
+        start = end + 3;
+    }
+    while (start < tokenisedMethod.length() && tokenisedMethod.charAt(start) == ' ')
+      start++;
+    return start;
+  }
+
+  /**
+   * 64-bit FNV-1a hash of a string from a given index, optionally ignoring
+   * whitespace so reformatted copies of a method hash the same.
+   *
+   * @param s the string.
+   * @param from where to start.
+   * @param skipWhitespace whether to ignore whitespace.
+   * @return the fingerprint.
+   **/
+  static long fingerprint(String s, int from, boolean skipWhitespace)
+  {
+    long hash = FNV_OFFSET;
+    for (int cnt = from; cnt < s.length(); cnt++)
+    {
+      char c = s.charAt(cnt);
+      if (skipWhitespace && Character.isWhitespace(c))
+        continue;
+      hash ^= c;
+      hash *= FNV_PRIME;
+    }
+    // zero marks an empty slot in the table.
+    return hash == 0 ? 1 : hash;
+  }
+
+  private int indexOf(String split)
+  {
+    for (int cnt = 0; cnt < splits.length; cnt++)
+      if (splits[cnt].equals(split))
+        return cnt;
+    throw new IllegalArgumentException("Unknown split: " + split);
+  }
+
+  private int slot(long key)
+  {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h >>> 32) & (keys.length - 1);
+  }
+
+  private int get(long key)
+  {
+    for (int i = slot(key); keys[i] != 0; i = (i + 1) & (keys.length - 1))
+      if (keys[i] == key)
+        return values[i];
+    return -1;
+  }
+
+  private void put(long key, int value)
+  {
+    if ((size + 1) * 2L > keys.length)
+      grow();
+    int i = slot(key);
+    while (keys[i] != 0 && keys[i] != key)
+      i = (i + 1) & (keys.length - 1);
+    if (keys[i] == 0)
+      size++;
+    keys[i] = key;
+    values[i] = (byte) value;
+  }
+
+  private void grow()
+  {
+    long[] oldKeys = keys;
+    byte[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new byte[oldValues.length * 2];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++)
+      if (oldKeys[i] != 0)
+        put(oldKeys[i], oldValues[i]);
+  }
+}
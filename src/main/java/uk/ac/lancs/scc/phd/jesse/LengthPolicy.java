@@ -0,0 +1,126 @@
+/**
+ * LengthPolicy holds the maximum source (subtoken) and target (summary word)
+ * lengths NeuralCodeSum will be trained with, and what to do with records
+ * that go over them.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+public class LengthPolicy
+{
+  /**
+   * What to do with a record that's too long.
+   **/
+  public enum Mode
+  {
+    DROP,     // leave it out of the dataset.
+    TRUNCATE, // cut the subtokens and summary down to the maximum lengths.
+    FLAG      // keep it as it is, but list it.
+  }
+
+  private final int maxSourceLength;
+  private final int maxTargetLength;
+  private final Mode mode;
+
+  /**
+   * Creates a policy.
+   *
+   * @param maxSourceLength the most subtokens a method may have.
+   * @param maxTargetLength the most words a summary may have.
+   * @param mode what to do with records over either length.
+   **/
+  public LengthPolicy(int maxSourceLength, int maxTargetLength, Mode mode)
+  {
+    this.maxSourceLength = maxSourceLength;
+    this.maxTargetLength = maxTargetLength;
+    this.mode = mode;
+  }
+
+  /**
+   * Gets the most subtokens a method may have.
+   *
+   * @return the maximum source length.
+   **/
+  public int getMaxSourceLength()
+  {
+    return maxSourceLength;
+  }
+
+  /**
+   * Gets the most words a summary may have.
+   *
+   * @return the maximum target length.
+   **/
+  public int getMaxTargetLength()
+  {
+    return maxTargetLength;
+  }
+
+  /**
+   * Gets what to do with records that are too long.
+   *
+   * @return the mode.
+   **/
+  public Mode getMode()
+  {
+    return mode;
+  }
+
+  /**
+   * Checks a record's lengths against the policy.
+   *
+   * @param sourceLength the number of subtokens in the method.
+   * @param targetLength the number of words in the summary.
+   * @return true if either is too long.
+   **/
+  public boolean exceeds(int sourceLength, int targetLength)
+  {
+    return sourceLength > maxSourceLength || targetLength > maxTargetLength;
+  }
+
+  /**
+   * Counts the whitespace separated tokens in a string.
+   *
+   * @param s the string.
+   * @return the number of tokens.
+   **/
+  public static int countTokens(String s)
+  {
+    int count = 0;
+    boolean inToken = false;
+    for (int cnt = 0; cnt < s.length(); cnt++)
+    {
+      boolean space = Character.isWhitespace(s.charAt(cnt));
+      if (!space && !inToken)
+        count++;
+      inToken = !space;
+    }
+    return count;
+  }
+
+  /**
+   * Cuts a string down to its first few whitespace separated tokens.
+   *
+   * @param s the string.
+   * @param max the most tokens to keep.
+   * @return the string, single spaced, if it was cut; otherwise unchanged.
+   **/
+  public static String truncate(String s, int max)
+  {
+    if (countTokens(s) <= max)
+      return s;
+    StringBuilder sb = new StringBuilder();
+    int kept = 0;
+    for (String token: s.trim().split("\\s+"))
+    {
+      if (kept++ == max)
+        break;
+      if (sb.length() > 0)
+        sb.append(" ");
+      sb.append(token);
+    }
+    return sb.toString();
+  }
+}
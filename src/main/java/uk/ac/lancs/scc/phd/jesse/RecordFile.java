@@ -0,0 +1,137 @@
+/**
+ * RecordFile keeps records of string fields in a temp file, so they can be
+ * found again by their offset without holding them in memory.  Records are
+ * appended as an int length, an int number of fields, then each field as an
+ * int length (-1 for null) and UTF-8 bytes.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+class RecordFile implements Closeable
+{
+  private final Path path;
+  private final DataOutputStream out;
+  private final FileChannel channel;
+  private long size = 0;
+  private long records = 0;
+  private boolean flushed = true;
+
+  /**
+   * Creates the file, replacing any already there.
+   *
+   * @param path the file.
+   * @throws IOException
+   **/
+  public RecordFile(Path path) throws IOException
+  {
+    this.path = path;
+    out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @param fields the record's fields, any of which may be null.
+   * @return the offset to read it back from.
+   * @throws IOException
+   **/
+  public long append(String... fields) throws IOException
+  {
+    byte[][] bytes = new byte[fields.length][];
+    int length = 4;
+    for (int cnt = 0; cnt < fields.length; cnt++)
+    {
+      if (fields[cnt] != null)
+        bytes[cnt] = fields[cnt].getBytes(StandardCharsets.UTF_8);
+      length += 4 + (bytes[cnt] == null ? 0 : bytes[cnt].length);
+    }
+    out.writeInt(length);
+    out.writeInt(fields.length);
+    for (byte[] field: bytes)
+    {
+      out.writeInt(field == null ? -1 : field.length);
+      if (field != null)
+        out.write(field);
+    }
+    long offset = size;
+    size += 4 + length;
+    records++;
+    flushed = false;
+    return offset;
+  }
+
+  /**
+   * Reads a record back.
+   *
+   * @param offset the offset append() gave for it.
+   * @return its fields.
+   * @throws IOException
+   **/
+  public String[] read(long offset) throws IOException
+  {
+    if (!flushed)
+    {
+      out.flush();
+      flushed = true;
+    }
+    ByteBuffer header = ByteBuffer.allocate(4);
+    readFully(header, offset);
+    ByteBuffer record = ByteBuffer.allocate(header.getInt(0));
+    readFully(record, offset + 4);
+    record.flip();
+    String[] fields = new String[record.getInt()];
+    for (int cnt = 0; cnt < fields.length; cnt++)
+    {
+      int length = record.getInt();
+      if (length < 0)
+        continue;
+      fields[cnt] = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+      record.position(record.position() + length);
+    }
+    return fields;
+  }
+
+  /**
+   * Gets the number of records appended.
+   *
+   * @return the number of records.
+   **/
+  public long getNumberOfRecords()
+  {
+    return records;
+  }
+
+  /**
+   * Closes and deletes the file.
+   *
+   * @throws IOException
+   **/
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      out.close();
+    } finally
+    {
+      channel.close();
+      Files.deleteIfExists(path);
+    }
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException
+  {
+    while (buffer.hasRemaining())
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new EOFException("Record at " + position + " runs past the end of " + path);
+  }
+}
@@ -0,0 +1,199 @@
+/**
+ * RunManifest records what a previous run of the Preprocessor wrote, so the
+ * next run can reprocess only the records that were added or changed.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import org.json.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+public class RunManifest
+{
+  public static final String FILE_NAME = "manifest.json";
+  public static final String UNPARSABLE = "unparsable";
+  public static final String TOO_LONG = "too_long";
+  public static final String UNUSED = "unused";
+
+  private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+  private String settings = "";
+
+  /**
+   * Where a single record ended up: its content hash, the split it was
+   * written to, and the line it occupies in that split's files.  Records
+   * that were left out for good have a split of UNPARSABLE or TOO_LONG and a
+   * line of -1.  Records that were processed but not used (repeats, over the
+   * 500k, or dropped for leaking) have a split of UNUSED and the line they
+   * were set aside at, as whether they're used depends on the other records.
+   **/
+  public static class Entry
+  {
+    public final String hash;
+    public final String split;
+    public final int line;
+
+    public Entry(String hash, String split, int line)
+    {
+      this.hash = hash;
+      this.split = split;
+      this.line = line;
+    }
+
+    /**
+     * Whether the record was written to a split.
+     *
+     * @return false if it was left out.
+     **/
+    public boolean isWritten()
+    {
+      return line >= 0 && !UNUSED.equals(split);
+    }
+
+    /**
+     * Whether the record's processed output was saved, in a split or set
+     * aside as unused.
+     *
+     * @return false if it was left out for good.
+     **/
+    public boolean hasOutput()
+    {
+      return line >= 0;
+    }
+  }
+
+  /**
+   * Hashes the raw content of a record, as read by getData().
+   *
+   * @param method the raw method.
+   * @param summary the raw Javadoc comment.
+   * @return the SHA-256 of the record as a hex string.
+   **/
+  public static String hash(String method, String summary)
+  {
+    try
+    {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(method.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+      md.update(summary.getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(md.digest());
+    } catch (NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Records where a record was written.
+   *
+   * @param id the record id from the Funcom dataset.
+   * @param hash the content hash of the record.
+   * @param split the split it was written to, UNUSED, UNPARSABLE or TOO_LONG.
+   * @param line the line it occupies in that split, or -1.
+   **/
+  public void put(String id, String hash, String split, int line)
+  {
+    entries.put(id, new Entry(hash, split, line));
+  }
+
+  /**
+   * Gets the entry for a record.
+   *
+   * @param id the record id.
+   * @return the entry, or null if the previous run didn't have the record.
+   **/
+  public Entry get(String id)
+  {
+    return entries.get(id);
+  }
+
+  /**
+   * Sets the settings the records were processed with, so a run with
+   * different ones knows not to reuse them.
+   *
+   * @param settings a description of the settings.
+   **/
+  public void setSettings(String settings)
+  {
+    this.settings = settings;
+  }
+
+  /**
+   * Gets the settings the records were processed with.
+   *
+   * @return a description of the settings, or "" if none were saved.
+   **/
+  public String getSettings()
+  {
+    return settings;
+  }
+
+  /**
+   * Gets the number of records in the manifest.
+   *
+   * @return the number of records.
+   **/
+  public int size()
+  {
+    return entries.size();
+  }
+
+  /**
+   * Loads the manifest left in a directory by a previous run.
+   *
+   * @param dir where to look for it.
+   * @return the manifest, or an empty one if there isn't one.
+   * @throws IOException
+   **/
+  public static RunManifest load(String dir) throws IOException
+  {
+    RunManifest manifest = new RunManifest();
+    Path path = FileSystems.getDefault().getPath(dir + FILE_NAME);
+    if (!Files.exists(path))
+      return manifest;
+    JSONObject jSON = new JSONObject(Files.readString(path));
+    manifest.setSettings(jSON.optString("settings", ""));
+    JSONObject records = jSON.getJSONObject("records");
+    for (String id: records.keySet())
+    {
+      JSONObject record = records.getJSONObject(id);
+      manifest.put(id,
+        record.getString("hash"),
+        record.getString("split"),
+        record.getInt("line"));
+    }
+    return manifest;
+  }
+
+  /**
+   * Saves the manifest into a directory, for the next run to diff against.
+   *
+   * @param dir where to save it.
+   * @throws IOException
+   **/
+  public void save(String dir) throws IOException
+  {
+    JSONObject records = new JSONObject();
+    for (Map.Entry<String, Entry> e: entries.entrySet())
+    {
+      JSONObject record = new JSONObject();
+      record.put("hash", e.getValue().hash);
+      record.put("split", e.getValue().split);
+      record.put("line", e.getValue().line);
+      records.put(e.getKey(), record);
+    }
+    JSONObject jSON = new JSONObject();
+    jSON.put("settings", settings);
+    jSON.put("records", records);
+    Path path = FileSystems.getDefault().getPath(dir + FILE_NAME);
+    FileWriter fp = new FileWriter(path.toFile());
+    fp.write(jSON.toString());
+    fp.close();
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * SplitWriter writes one NeuralCodeSum split (test, train or dev), counting
+ * the subtokens and summary words as they're written.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+class SplitWriter implements Closeable
+{
+  public static final String METHOD_FILE = "code.original";
+  public static final String TOKENISED_FILE = "code.original_subtoken";
+  public static final String SUMMARY_FILE = "javadoc.original";
+  public static final String COLUMNAR_FILE = "data.jdsc";
+
+  private FileWriter fp = null;
+  private FileWriter fp1 = null;
+  private FileWriter fp2 = null;
+  private ColumnarWriter columnar = null;
+  private TokenCounts codeCounts = null;
+  private TokenCounts summaryCounts = null;
+  private int lines = 0;
+
+  /**
+   * Creates the split directory and opens the requested files for writing.
+   * Files of the split that aren't requested are deleted, as any left by an
+   * earlier run wouldn't line up with the new ones.
+   *
+   * @param splitPath the directory for the split.
+   * @param artifacts which of the split's files to write, and which
+   * vocabularies to count.
+   * @param columnarPool the threads to compress the columnar file on, or
+   * null not to write one.
+   * @throws IOException
+   **/
+  public SplitWriter(Path splitPath, Set<Artifact> artifacts, ExecutorService columnarPool) throws IOException
+  {
+    Files.createDirectories(splitPath);
+    fp = open(splitPath.resolve(METHOD_FILE), artifacts.contains(Artifact.METHODS));
+    fp1 = open(splitPath.resolve(TOKENISED_FILE), artifacts.contains(Artifact.SUBTOKENS));
+    fp2 = open(splitPath.resolve(SUMMARY_FILE), artifacts.contains(Artifact.SUMMARIES));
+    if (artifacts.contains(Artifact.CODE_VOCABULARY))
+      codeCounts = new TokenCounts();
+    if (artifacts.contains(Artifact.SUMMARY_VOCABULARY))
+      summaryCounts = new TokenCounts();
+    if (columnarPool == null || !artifacts.contains(Artifact.COLUMNAR))
+      Files.deleteIfExists(splitPath.resolve(COLUMNAR_FILE));
+    else
+      columnar = new ColumnarWriter(splitPath.resolve(COLUMNAR_FILE),
+        ColumnarWriter.DEFAULT_CHUNK_SIZE,
+        columnarPool);
+  }
+
+  /**
+   * Writes one record to the split.
+   *
+   * @param method the method.
+   * @param tokenisedMethod the tokenised method, or null if it isn't written.
+   * @param summary the summary.
+   * @return the line the record was written to.
+   * @throws IOException
+   **/
+  public int write(String method, String tokenisedMethod, String summary) throws IOException
+  {
+    if (fp != null)
+      fp.write(method + "\n");
+    if (fp1 != null)
+      fp1.write(tokenisedMethod + "\n");
+    if (fp2 != null)
+      fp2.write(summary.trim() + "\n");
+    if (columnar != null)
+      columnar.write(method, tokenisedMethod, summary.trim());
+    if (codeCounts != null && tokenisedMethod != null)
+      codeCounts.addRecord(tokenisedMethod);
+    if (summaryCounts != null)
+      summaryCounts.addRecord(summary.trim());
+    return lines++;
+  }
+
+  /**
+   * Gets the subtoken counts of the tokenised methods written.
+   *
+   * @return the counts, or null if they aren't counted.
+   **/
+  public TokenCounts getCodeCounts()
+  {
+    return codeCounts;
+  }
+
+  /**
+   * Gets the word counts of the summaries written.
+   *
+   * @return the counts, or null if they aren't counted.
+   **/
+  public TokenCounts getSummaryCounts()
+  {
+    return summaryCounts;
+  }
+
+  /**
+   * Closes the split's files, all of them even if one fails.
+   *
+   * @throws IOException
+   **/
+  @Override
+  public void close() throws IOException
+  {
+    IOException failure = null;
+    for (Closeable c: new Closeable[] {fp, fp1, fp2, columnar})
+    {
+      if (c == null)
+        continue;
+      try
+      {
+        c.close();
+      } catch (IOException e)
+      {
+        if (failure == null)
+          failure = e;
+        else
+          failure.addSuppressed(e);
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+
+  private static FileWriter open(Path path, boolean write) throws IOException
+  {
+    if (write)
+      return new FileWriter(path.toFile());
+    Files.deleteIfExists(path);
+    return null;
+  }
+}
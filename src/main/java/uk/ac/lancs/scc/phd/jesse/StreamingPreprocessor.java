@@ -0,0 +1,525 @@
+/**
+ * StreamingPreprocessor runs the Preprocessor's pipeline for data that won't
+ * fit in memory.  Records never all sit in the heap at once: the JSON files
+ * are streamed into temp RecordFiles, methods and comments are paired up by
+ * externally sorting (id fingerprint, offset) pairs, records are cleaned in
+ * batches and appended to another RecordFile, repeats are found by
+ * externally sorting (summary fingerprint, offset) pairs, and the splits are
+ * shuffled by externally sorting (random key, offset) pairs.  What it keeps
+ * in memory is bounded by the memory budget, apart from the leakage index
+ * and the vocabularies, which grow with what's written to the splits rather
+ * than with the corpus.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import org.json.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+
+class StreamingPreprocessor
+{
+  private static final String[] SPLITS = {"test", "train", "dev"};
+
+  private final JavaDatasetPreprocessor preprocessor;
+  private final LengthPolicy lengthPolicy;
+  private final LeakageIndex.Policy leakagePolicy;
+  private final long memoryBudget;
+  private final int maxRecords;
+  private HashMap<String, TokenCounts> codeCounts = new HashMap<>();
+  private HashMap<String, TokenCounts> summaryCounts = new HashMap<>();
+  private long goodMethods = 0;
+  private long badMethods = 0;
+
+  /**
+   * Creates a streaming pipeline with the Preprocessor's settings.
+   *
+   * @param preprocessor the Preprocessor, which picks the splits.
+   * @param lengthPolicy the length policy, or null.
+   * @param leakagePolicy the leakage policy.
+   * @param memoryBudget roughly how many bytes the pipeline may hold.
+   * @param maxRecords the most records written across the splits.
+   **/
+  public StreamingPreprocessor(JavaDatasetPreprocessor preprocessor,
+    LengthPolicy lengthPolicy,
+    LeakageIndex.Policy leakagePolicy,
+    long memoryBudget,
+    int maxRecords)
+  {
+    this.preprocessor = preprocessor;
+    this.lengthPolicy = lengthPolicy;
+    this.leakagePolicy = leakagePolicy;
+    this.memoryBudget = memoryBudget;
+    this.maxRecords = maxRecords;
+  }
+
+  /**
+   * Runs the pipeline, writing the given artifacts.  The budget is shared
+   * out between the sorters and the batch of records being cleaned.
+   *
+   * @param dataLocation where to find the data.
+   * @param dir where to save the artifacts.
+   * @param artifacts the artifacts to write.
+   * @throws IOException
+   **/
+  public void run(String dataLocation, String dir, Set<Artifact> artifacts) throws IOException
+  {
+    FileSystem fS = FileSystems.getDefault();
+    long share = memoryBudget / 4;
+    Path tempDir = Files.createTempDirectory("javadatasetcleaner");
+    try (RecordFile records = new RecordFile(tempDir.resolve("records"));
+      ExternalSorter randomOrder = new ExternalSorter(share))
+    {
+      long kept;
+      try (ExternalSorter summaryOrder = new ExternalSorter(share))
+      {
+        try (RecordFile functions = new RecordFile(tempDir.resolve("functions"));
+          RecordFile comments = new RecordFile(tempDir.resolve("comments"));
+          ExternalSorter functionOrder = new ExternalSorter(share);
+          ExternalSorter commentOrder = new ExternalSorter(share))
+        {
+          System.out.println("Streaming data to disk:");
+          readObject(fS.getPath(dataLocation + "functions.json"), functions, functionOrder);
+          readObject(fS.getPath(dataLocation + "comments.json"), comments, commentOrder);
+          System.out.println(functions.getNumberOfRecords() + " methods and "
+            + comments.getNumberOfRecords() + " comments.");
+          System.out.println("Pairing up methods and comments, and cleaning them.");
+          try (Cleaner cleaner = new Cleaner(dir, artifacts, records, summaryOrder, share))
+          {
+            pairUp(functions, functionOrder, comments, commentOrder, cleaner);
+          }
+        }
+        System.out.println(goodMethods + " methods parsed, " + badMethods + " couldn't be.");
+        if (!Artifact.needSplits(artifacts))
+          return;
+        System.out.println("Removing repeats.");
+        kept = removeRepeats(records, summaryOrder, randomOrder);
+        System.out.println((records.getNumberOfRecords() - kept) + " repeats removed, with "
+          + summaryOrder.getNumberOfRuns() + " sorted runs on disk.");
+      }
+      System.out.println("Writing the splits.");
+      writeSplits(dir, artifacts, records, randomOrder, (int) Math.min(maxRecords, kept));
+      System.out.println("Shuffled with " + randomOrder.getNumberOfRuns() + " sorted runs on disk.");
+    } finally
+    {
+      JavaDatasetPreprocessor.deleteDirectory(tempDir);
+    }
+  }
+
+  /**
+   * Gets the number of methods that parsed.
+   *
+   * @return the number of good methods.
+   **/
+  public long getNumberOfGoodMethods()
+  {
+    return goodMethods;
+  }
+
+  /**
+   * Gets the number of methods that didn't parse.
+   *
+   * @return the number of bad methods.
+   **/
+  public long getNumberOfBadMethods()
+  {
+    return badMethods;
+  }
+
+  /**
+   * Gets the subtoken counts of each split, as they were written.
+   *
+   * @return the counts by split, without the ones that weren't counted.
+   **/
+  public HashMap<String, TokenCounts> getCodeCounts()
+  {
+    return codeCounts;
+  }
+
+  /**
+   * Gets the summary word counts of each split, as they were written.
+   *
+   * @return the counts by split, without the ones that weren't counted.
+   **/
+  public HashMap<String, TokenCounts> getSummaryCounts()
+  {
+    return summaryCounts;
+  }
+
+  /**
+   * Streams a JSON object of id to string into a RecordFile, one record of
+   * (id, value) per member, without reading the whole object into memory.
+   *
+   * @param path the JSON file.
+   * @param file where to put the members.
+   * @param order gets the fingerprint of each id and the offset of its record.
+   * @throws IOException
+   **/
+  private static void readObject(Path path, RecordFile file, ExternalSorter order) throws IOException
+  {
+    try (Reader reader = Files.newBufferedReader(path))
+    {
+      JSONTokener tokener = new JSONTokener(reader);
+      if (tokener.nextClean() != '{')
+        throw tokener.syntaxError("A JSONObject text must begin with '{'");
+      char c = tokener.nextClean();
+      while (c != '}')
+      {
+        if (c != '"')
+          throw tokener.syntaxError("Expected a quoted key");
+        String id = tokener.nextString('"');
+        if (tokener.nextClean() != ':')
+          throw tokener.syntaxError("Expected a ':' after a key");
+        Object value = tokener.nextValue();
+        if (!(value instanceof String))
+          throw tokener.syntaxError("JSONObject[" + JSONObject.quote(id) + "] is not a string");
+        order.add(fingerprint(id), file.append(id, (String) value));
+        c = tokener.nextClean();
+        if (c == ',')
+          c = tokener.nextClean();
+        else if (c != '}')
+          throw tokener.syntaxError("Expected a ',' or '}'");
+      }
+    }
+  }
+
+  /**
+   * Pairs up methods and comments by their record id, by merging the two
+   * sorted lists of id fingerprints, and passes each pair on to be cleaned.
+   * Ids that share a fingerprint are compared, so only the same id pairs.
+   *
+   * @param functions the methods.
+   * @param functionOrder the methods' id fingerprints.
+   * @param comments the comments.
+   * @param commentOrder the comments' id fingerprints.
+   * @param cleaner what to pass the pairs on to.
+   * @throws IOException
+   **/
+  private void pairUp(RecordFile functions, ExternalSorter functionOrder,
+    RecordFile comments, ExternalSorter commentOrder, Cleaner cleaner) throws IOException
+  {
+    ExternalSorter.Cursor function = functionOrder.sorted();
+    ExternalSorter.Cursor comment = commentOrder.sorted();
+    boolean moreFunctions = function.next();
+    boolean moreComments = comment.next();
+    ArrayList<Long> group = new ArrayList<>();
+    HashMap<String, String> groupComments = new HashMap<>();
+    while (moreFunctions && moreComments)
+    {
+      if (function.key() != comment.key())
+      {
+        if (function.key() < comment.key())
+          moreFunctions = function.next();
+        else
+          moreComments = comment.next();
+        continue;
+      }
+      long key = function.key();
+      group.clear();
+      groupComments.clear();
+      while (moreFunctions && function.key() == key)
+      {
+        group.add(function.value());
+        moreFunctions = function.next();
+      }
+      while (moreComments && comment.key() == key)
+      {
+        String[] record = comments.read(comment.value());
+        groupComments.putIfAbsent(record[0], record[1]);
+        moreComments = comment.next();
+      }
+      for (long offset: group)
+      {
+        String[] record = functions.read(offset);
+        // removed once paired, so a repeated id is only used once.
+        String summary = groupComments.remove(record[0]);
+        if (summary != null)
+          cleaner.add(record[0], record[1], summary);
+      }
+    }
+  }
+
+  /**
+   * Cleans records in batches, in parallel, the same way the Preprocessor's
+   * stages do: long summaries are dropped, methods are parsed and stripped
+   * of comments, summaries are cleaned, the length policy is applied and
+   * newlines are stripped.  Kept records go in the JSON dump if it's asked
+   * for, and are appended to the records file as (id, method, tokenised
+   * method, summary), with their summary fingerprint for removing repeats.
+   **/
+  private class Cleaner implements Closeable
+  {
+    private final RecordFile records;
+    private final ExternalSorter summaryOrder;
+    private final long batchBytes;
+    private final boolean tokenise;
+    private final DumpWriter methodDump;
+    private final DumpWriter summaryDump;
+    private final FileWriter flags;
+    private ArrayList<String[]> batch = new ArrayList<>();
+    private long batchSize = 0;
+
+    Cleaner(String dir, Set<Artifact> artifacts, RecordFile records,
+      ExternalSorter summaryOrder, long batchBytes) throws IOException
+    {
+      FileSystem fS = FileSystems.getDefault();
+      this.records = records;
+      this.summaryOrder = summaryOrder;
+      this.batchBytes = batchBytes;
+      tokenise = Artifact.needTokens(artifacts);
+      if (artifacts.contains(Artifact.JSON_DUMP))
+      {
+        methodDump = new DumpWriter(fS.getPath(dir + "methodsProcessed.json"), "methods");
+        summaryDump = new DumpWriter(fS.getPath(dir + "summariesProcessed.json"), "summaries");
+      } else
+      {
+        methodDump = null;
+        summaryDump = null;
+      }
+      flags = lengthPolicy != null && lengthPolicy.getMode() == LengthPolicy.Mode.FLAG
+        ? new FileWriter(fS.getPath(dir + "length_flags.txt").toFile())
+        : null;
+    }
+
+    void add(String id, String method, String summary) throws IOException
+    {
+      batch.add(new String[]{id, method, summary});
+      // two bytes a char, for the raw record and about as much again cleaned.
+      batchSize += 4L * (method.length() + summary.length());
+      if (batchSize >= batchBytes)
+        flush();
+    }
+
+    private void flush() throws IOException
+    {
+      int size = batch.size();
+      String[] methods = new String[size];
+      String[] tokenised = new String[size];
+      String[] summaries = new String[size];
+      String[] flagged = new String[size];
+      boolean[] parsed = new boolean[size];
+      boolean[] unparsable = new boolean[size];
+      IntStream.range(0, size).parallel().forEach(cnt ->
+      {
+        String[] record = batch.get(cnt);
+        String summary = JavaDatasetPreprocessor.cleanSummary(record[2]);
+        if (lengthPolicy != null && lengthPolicy.getMode() == LengthPolicy.Mode.DROP
+          && LengthPolicy.countTokens(summary) > lengthPolicy.getMaxTargetLength())
+          return;
+        String method = JavaDatasetPreprocessor.removeComments(JP.createJavaParser(false), record[1]);
+        if (method == null)
+        {
+          unparsable[cnt] = true;
+          return;
+        }
+        parsed[cnt] = true;
+        String tokens = null;
+        if (lengthPolicy != null)
+        {
+          tokens = JavaDatasetPreprocessor.tokeniseMethod(method);
+          int sourceLength = LengthPolicy.countTokens(tokens);
+          int targetLength = LengthPolicy.countTokens(summary);
+          if (lengthPolicy.exceeds(sourceLength, targetLength))
+          {
+            if (lengthPolicy.getMode() == LengthPolicy.Mode.DROP)
+              return;
+            if (lengthPolicy.getMode() == LengthPolicy.Mode.TRUNCATE)
+              summary = LengthPolicy.truncate(summary, lengthPolicy.getMaxTargetLength());
+            else
+              flagged[cnt] = record[0] + " " + sourceLength + " " + targetLength + "\n";
+          }
+        }
+        methods[cnt] = method.replaceAll("\n", " ");
+        summaries[cnt] = summary.replaceAll("\n", " ");
+        if (tokenise)
+        {
+          // the tokeniser collapses whitespace, so stripping newlines since
+          // doesn't change the tokens.
+          tokens = tokens != null ? tokens : JavaDatasetPreprocessor.tokeniseMethod(methods[cnt]);
+          if (lengthPolicy != null && lengthPolicy.getMode() == LengthPolicy.Mode.TRUNCATE)
+            tokens = LengthPolicy.truncate(tokens, lengthPolicy.getMaxSourceLength());
+          tokenised[cnt] = tokens;
+        }
+      });
+
+      for (int cnt = 0; cnt < size; cnt++)
+      {
+        String[] record = batch.get(cnt);
+        if (parsed[cnt])
+          goodMethods++;
+        else if (unparsable[cnt])
+        {
+          badMethods++;
+          System.out.println("could not parse:\n" + record[1]);
+          System.out.println("\n++++++++++++++++++++++++++++++++++++++++++++++++++++++");
+        }
+        if (methods[cnt] == null)
+          continue;
+        if (flagged[cnt] != null)
+          flags.write(flagged[cnt]);
+        if (methodDump != null)
+        {
+          methodDump.add(methods[cnt]);
+          summaryDump.add(summaries[cnt].trim());
+        }
+        long offset = records.append(record[0], methods[cnt], tokenised[cnt], summaries[cnt]);
+        summaryOrder.add(fingerprint(summaries[cnt]), offset);
+      }
+      batch.clear();
+      batchSize = 0;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try
+      {
+        flush();
+      } finally
+      {
+        for (Closeable c: new Closeable[] {methodDump, summaryDump, flags})
+          if (c != null)
+            c.close();
+      }
+    }
+  }
+
+  /**
+   * Writes one array of strings as a JSON dump, the way saveData() lays it
+   * out, a string at a time.
+   **/
+  private static class DumpWriter implements Closeable
+  {
+    private final Writer out;
+    private boolean first = true;
+
+    DumpWriter(Path path, String name) throws IOException
+    {
+      out = Files.newBufferedWriter(path);
+      out.write("{" + JSONObject.quote(name) + ": [[");
+    }
+
+    void add(String s) throws IOException
+    {
+      out.write(first ? "\n    " : ",\n    ");
+      out.write(JSONObject.quote(s));
+      first = false;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try
+      {
+        out.write(first ? "]]}" : "\n]]}");
+      } finally
+      {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Removes repeats, keeping the first record with each summary.  The
+   * records come sorted by their summary fingerprint, so repeats are next to
+   * each other and only a group at a time is compared; the summaries are
+   * compared in case two differ but share a fingerprint.  Each kept record
+   * gets a random key, so sorting by it shuffles them.
+   *
+   * @param records the records.
+   * @param summaryOrder the records' summary fingerprints.
+   * @param randomOrder gets a random key and the offset of each kept record.
+   * @return the number of records kept.
+   * @throws IOException
+   **/
+  private long removeRepeats(RecordFile records, ExternalSorter summaryOrder,
+    ExternalSorter randomOrder) throws IOException
+  {
+    Random random = new Random();
+    ExternalSorter.Cursor cursor = summaryOrder.sorted();
+    ArrayList<String> group = new ArrayList<>();
+    long groupKey = 0;
+    long kept = 0;
+    while (cursor.next())
+    {
+      if (group.isEmpty() || cursor.key() != groupKey)
+      {
+        group.clear();
+        groupKey = cursor.key();
+      }
+      String summary = records.read(cursor.value())[3];
+      if (group.contains(summary))
+        continue;
+      group.add(summary);
+      randomOrder.add(random.nextLong(), cursor.value());
+      kept++;
+    }
+    return kept;
+  }
+
+  /**
+   * Writes the records to the splits in their random order, the same way
+   * prepareDataForNeuralCodeSum() does, up to the most records allowed.
+   *
+   * @param dir where to save them.
+   * @param artifacts the artifacts to save.
+   * @param records the records.
+   * @param randomOrder the kept records, by their random key.
+   * @param total the number of records to write.
+   * @throws IOException
+   **/
+  private void writeSplits(String dir, Set<Artifact> artifacts, RecordFile records,
+    ExternalSorter randomOrder, int total) throws IOException
+  {
+    FileSystem fS = FileSystems.getDefault();
+    LeakageIndex leakageIndex = new LeakageIndex(leakagePolicy, SPLITS, total);
+    ExecutorService columnarPool = artifacts.contains(Artifact.COLUMNAR)
+      ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+      : null;
+    try (SplitWriter test = new SplitWriter(fS.getPath(dir + "test"), artifacts, columnarPool);
+      SplitWriter train = new SplitWriter(fS.getPath(dir + "train"), artifacts, columnarPool);
+      SplitWriter dev = new SplitWriter(fS.getPath(dir + "dev"), artifacts, columnarPool))
+    {
+      HashMap<String, SplitWriter> writers = new HashMap<>();
+      writers.put("test", test);
+      writers.put("train", train);
+      writers.put("dev", dev);
+      ExternalSorter.Cursor cursor = randomOrder.sorted();
+      int position = 0;
+      while (position < total && cursor.next())
+      {
+        String[] record = records.read(cursor.value());
+        String split = preprocessor.assignSplit(record[0], record[1], position, total);
+        if (split == null)
+          break;
+        split = leakageIndex.check(record[1], record[2], split);
+        if (split == null)
+          continue;
+        writers.get(split).write(record[1], record[2], record[3]);
+        position++;
+      }
+      for (Map.Entry<String, SplitWriter> writer: writers.entrySet())
+      {
+        if (writer.getValue().getCodeCounts() != null)
+          codeCounts.put(writer.getKey(), writer.getValue().getCodeCounts());
+        if (writer.getValue().getSummaryCounts() != null)
+          summaryCounts.put(writer.getKey(), writer.getValue().getSummaryCounts());
+      }
+    } finally
+    {
+      if (columnarPool != null)
+        columnarPool.shutdown();
+    }
+    System.out.print(leakageIndex.report());
+  }
+
+  private static long fingerprint(String s)
+  {
+    return LeakageIndex.fingerprint(s, 0, false);
+  }
+}
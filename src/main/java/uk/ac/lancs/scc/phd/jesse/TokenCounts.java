@@ -0,0 +1,191 @@
+/**
+ * TokenCounts builds a vocabulary and a length histogram for space separated
+ * text, such as tokenised methods or cleaned summaries.  Each split keeps its
+ * own, counted as its records are written.
+ *
+ * @author Jesse Phillips <j.m.phillips@lancaster.ac.uk>
+ * @version 0.0.1
+ **/
+package uk.ac.lancs.scc.phd.jesse;
+
+import org.json.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TokenCounts
+{
+  private String[] keys = new String[1024];
+  private int[] counts = new int[1024];
+  private int size = 0;
+  private long[] lengths = new long[64];
+  private long records = 0;
+  private long tokens = 0;
+
+  /**
+   * Counts the tokens of one record, and its length in tokens.
+   *
+   * @param text the record, with its tokens separated by whitespace.
+   * @return the length of the record in tokens.
+   **/
+  public int addRecord(String text)
+  {
+    int length = 0;
+    int start = -1;
+    for (int cnt = 0; cnt <= text.length(); cnt++)
+    {
+      boolean space = cnt == text.length() || Character.isWhitespace(text.charAt(cnt));
+      if (space && start >= 0)
+      {
+        add(text.substring(start, cnt), 1);
+        length++;
+        start = -1;
+      } else if (!space && start < 0)
+        start = cnt;
+    }
+    if (length >= lengths.length)
+      lengths = Arrays.copyOf(lengths, Math.max(length + 1, lengths.length * 2));
+    lengths[length]++;
+    records++;
+    tokens += length;
+    return length;
+  }
+
+  /**
+   * Gets how many times a token was seen.
+   *
+   * @param token the token.
+   * @return its count.
+   **/
+  public int getCount(String token)
+  {
+    for (int i = slot(token, keys.length); keys[i] != null; i = (i + 1) & (keys.length - 1))
+      if (keys[i].equals(token))
+        return counts[i];
+    return 0;
+  }
+
+  /**
+   * Gets the number of distinct tokens seen.
+   *
+   * @return the vocabulary size.
+   **/
+  public int getVocabularySize()
+  {
+    return size;
+  }
+
+  /**
+   * Gets the number of records counted.
+   *
+   * @return the number of records.
+   **/
+  public long getNumberOfRecords()
+  {
+    return records;
+  }
+
+  /**
+   * Gets the shortest length, in tokens, that covers a share of the records.
+   *
+   * @param fraction the share of records, e.g. 0.95.
+   * @return the length.
+   **/
+  public int getLengthCovering(double fraction)
+  {
+    long needed = (long) Math.ceil(records * fraction);
+    long seen = 0;
+    for (int cnt = 0; cnt < lengths.length; cnt++)
+    {
+      seen += lengths[cnt];
+      if (seen >= needed && seen > 0)
+        return cnt;
+    }
+    return 0;
+  }
+
+  /**
+   * Saves the vocabulary, most frequent first, as one "token count" per line.
+   *
+   * @param path where to save it.
+   * @throws IOException
+   **/
+  public void saveVocabulary(Path path) throws IOException
+  {
+    Integer[] order = new Integer[size];
+    int n = 0;
+    for (int cnt = 0; cnt < keys.length; cnt++)
+      if (keys[cnt] != null)
+        order[n++] = cnt;
+    Arrays.sort(order, (a, b) -> counts[a] != counts[b]
+      ? Integer.compare(counts[b], counts[a])
+      : keys[a].compareTo(keys[b]));
+    BufferedWriter fp = new BufferedWriter(new FileWriter(path.toFile()));
+    for (Integer cnt: order)
+      fp.write(keys[cnt] + " " + counts[cnt] + "\n");
+    fp.close();
+  }
+
+  /**
+   * Summarises the counts for the stats file.
+   *
+   * @return the statistics, including the length histogram.
+   **/
+  public JSONObject toJSON()
+  {
+    JSONObject jSON = new JSONObject();
+    jSON.put("records", records);
+    jSON.put("tokens", tokens);
+    jSON.put("vocabulary", size);
+    jSON.put("meanLength", records == 0 ? 0 : (double) tokens / records);
+    jSON.put("p50Length", getLengthCovering(0.50));
+    jSON.put("p90Length", getLengthCovering(0.90));
+    jSON.put("p95Length", getLengthCovering(0.95));
+    jSON.put("p99Length", getLengthCovering(0.99));
+    jSON.put("maxLength", getLengthCovering(1.0));
+    int last = lengths.length - 1;
+    while (last > 0 && lengths[last] == 0)
+      last--;
+    jSON.put("lengthHistogram", new JSONArray(Arrays.copyOf(lengths, last + 1)));
+    return jSON;
+  }
+
+  private static int slot(String token, int capacity)
+  {
+    int h = token.hashCode() * 0x9e3779b9;
+    return (h ^ (h >>> 16)) & (capacity - 1);
+  }
+
+  private void add(String token, int count)
+  {
+    if ((size + 1) * 2 > keys.length)
+      grow();
+    int i = slot(token, keys.length);
+    while (keys[i] != null && !keys[i].equals(token))
+      i = (i + 1) & (keys.length - 1);
+    if (keys[i] == null)
+    {
+      keys[i] = token;
+      size++;
+    }
+    counts[i] += count;
+  }
+
+  private void grow()
+  {
+    String[] oldKeys = keys;
+    int[] oldCounts = counts;
+    keys = new String[oldKeys.length * 2];
+    counts = new int[oldCounts.length * 2];
+    for (int cnt = 0; cnt < oldKeys.length; cnt++)
+    {
+      if (oldKeys[cnt] == null)
+        continue;
+      int i = slot(oldKeys[cnt], keys.length);
+      while (keys[i] != null)
+        i = (i + 1) & (keys.length - 1);
+      keys[i] = oldKeys[cnt];
+      counts[i] = oldCounts[cnt];
+    }
+  }
+}